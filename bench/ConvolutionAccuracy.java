@@ -0,0 +1,93 @@
+import java.util.Locale;
+
+/**
+ * Accuracy check of the float32 convolution path against the double path, for the kernels and radii used in src/
+ * and in ImageBenchmark: mean, Gaussian and general (direct or FFT) kernels, the Sobel_ derivatives and the
+ * CoinCounter_ Hough smoothing. Float accumulates in 24 bit mantissas, so the results differ from double by rounding
+ * only; the check fails if the error could change an 8-bit output by more than 1 LSB.
+ *
+ * <pre>
+ * javac -cp ij.jar -d bench/out src/*.java bench/*.java
+ * java -cp ij.jar:bench/out ConvolutionAccuracy
+ * </pre>
+ *
+ * Exits with status 1 if any case is outside its tolerance.
+ */
+public class ConvolutionAccuracy {
+
+    // allowed max abs error relative to the largest output magnitude, a few float epsilons per tap sum
+    private static final double MAX_RELATIVE_ERROR = 1e-5;
+
+    // the 613x411 image of the original check, and one large enough for the FFT path at r=16
+    private static final int[][] SIZES = {{613, 411}, {1155, 866}};
+
+    private static boolean failed = false;
+
+    public static void main(String[] args) {
+        System.out.printf(Locale.ROOT, "%-24s %10s %14s %14s %10s%n", "kernel", "size", "max abs err", "rel err",
+                "8-bit LSB");
+        for (int[] size : SIZES) {
+            int width = size[0];
+            int height = size[1];
+            GrayImage8 grayImg = new GrayImage8(ImageBenchmark.createGrayImage(width, height), width, height, width);
+            DoubleImage doubleImg = ImageJUtility.toDoubleImage(grayImg);
+            FloatImage floatImg = ImageJUtility.toFloatImage(grayImg);
+            String sizeName = width + "x" + height;
+
+            // integer input and kernel, sums far below 2^24: float has to be exact
+            check("Sobel_ x", sizeName, doubleImg, floatImg, Sobel_.SOBEL_X, 1, true);
+            check("Sobel_ y", sizeName, doubleImg, floatImg, Sobel_.SOBEL_Y, 1, true);
+            check("Hough smoothing r=" + CoinCounter_.HOUGH_SMOOTHING_RADIUS, sizeName, doubleImg, floatImg,
+                    ConvolutionFilter.getMeanMask(CoinCounter_.HOUGH_SMOOTHING_RADIUS),
+                    CoinCounter_.HOUGH_SMOOTHING_RADIUS, false);
+            for (int radius : new int[]{1, 4, 8, 16}) {
+                check("mean r=" + radius, sizeName, doubleImg, floatImg, ConvolutionFilter.getMeanMask(radius),
+                        radius, false);
+                check("gauss r=" + radius, sizeName, doubleImg, floatImg, ImageBenchmark.getGaussMask(radius),
+                        radius, false);
+                check("general r=" + radius, sizeName, doubleImg, floatImg, ImageBenchmark.getGeneralMask(radius),
+                        radius, false);
+            }
+        }
+        System.out.println(failed ? "FAILED" : "OK");
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * compares the serial and the parallel float path with convolveDouble
+     *
+     * @param exact true if the float result has to equal the double result
+     */
+    private static void check(String name, String sizeName, DoubleImage doubleImg, FloatImage floatImg,
+                              double[][] kernel, int radius, boolean exact) {
+        DoubleImage expected = ConvolutionFilter.convolveDouble(doubleImg, kernel, radius);
+        FloatImage[] actual = {ConvolutionFilter.convolveFloat(floatImg, kernel, radius),
+                ConvolutionFilter.convolveFloatParallel(floatImg, kernel, radius)};
+
+        double maxMagnitude = 0.0;
+        double maxError = 0.0;
+        int maxLsb = 0;
+        for (FloatImage result : actual) {
+            for (int y = 0; y < expected.height; y++) {
+                for (int x = 0; x < expected.width; x++) {
+                    double value = expected.pixels[y * expected.stride + x];
+                    float floatValue = result.pixels[y * result.stride + x];
+                    maxMagnitude = Math.max(maxMagnitude, Math.abs(value));
+                    maxError = Math.max(maxError, Math.abs(floatValue - value));
+                    maxLsb = Math.max(maxLsb, Math.abs(to8Bit(floatValue) - to8Bit(value)));
+                }
+            }
+        }
+
+        double relativeError = maxMagnitude > 0.0 ? maxError / maxMagnitude : maxError;
+        boolean ok = exact ? maxError == 0.0 : relativeError <= MAX_RELATIVE_ERROR && maxLsb <= 1;
+        failed |= !ok;
+        System.out.printf(Locale.ROOT, "%-24s %10s %14.3e %14.3e %10d%s%n", name, sizeName, maxError, relativeError,
+                maxLsb, ok ? "" : "  <-- outside tolerance");
+    }
+
+    private static int to8Bit(double value) {
+        return (int) Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+}
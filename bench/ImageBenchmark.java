@@ -0,0 +1,270 @@
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.gui.PointRoi;
+import ij.macro.Interpreter;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+
+import java.awt.*;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Throughput benchmarks for the image operations in src/, reported in megapixels per second on synthetic images.
+ * Plain Java harness (warmup, then timed iterations until a minimum run time is reached) so that it compiles
+ * against ij.jar without a build tool:
+ *
+ * <pre>
+ * javac -cp ij.jar -d bench/out src/*.java bench/*.java
+ * java -Xmx4g -Djava.awt.headless=true -cp ij.jar:bench/out ImageBenchmark [megapixels ...]
+ * </pre>
+ *
+ * Default sizes are 1, 10 and 50 megapixels. The whole-plugin benchmarks (registration, region growing, coin
+ * counter) only run up to -Dbench.heavyMaxMP (default 10) megapixels, getRegisteredImage alone takes minutes per
+ * iteration at 50 MP. -Dbench.filter=name runs only benchmarks whose name contains the given text.
+ */
+public class ImageBenchmark {
+
+    private static final long MIN_RUN_NANOS = 2_000_000_000L;
+    private static final int WARMUP_ITERATIONS = 2;
+
+    private static final double HEAVY_MAX_MP = Double.parseDouble(System.getProperty("bench.heavyMaxMP", "10"));
+    private static final String FILTER = System.getProperty("bench.filter", "");
+
+    // consumed by every benchmark so that the JIT cannot drop the work
+    private static long blackhole = 0;
+
+    // results go here, System.out is muted while plugins log their answers (IJ.log prints to System.out without a
+    // log window)
+    private static final PrintStream REPORT = System.out;
+    private static final PrintStream MUTED = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+    });
+
+    interface Op {
+        Object run();
+    }
+
+    public static void main(String[] args) {
+        List<Double> sizes = new ArrayList<>();
+        for (String arg : args) {
+            sizes.add(Double.parseDouble(arg));
+        }
+        if (sizes.isEmpty()) {
+            sizes.add(1.0);
+            sizes.add(10.0);
+            sizes.add(50.0);
+        }
+
+        // plugins end in ImagePlus.show(), batch mode keeps them from opening windows
+        Interpreter.batchMode = true;
+
+        REPORT.printf("%-42s %8s %6s %12s %10s%n", "benchmark", "MP", "iter", "ms/op", "MP/s");
+        System.setOut(MUTED);
+        for (double megapixels : sizes) {
+            runAll(megapixels);
+        }
+        REPORT.println("(blackhole " + blackhole + ")");
+        System.exit(0);
+    }
+
+    private static void runAll(double megapixels) {
+        int width = (int) Math.round(Math.sqrt(megapixels * 1e6 * 4.0 / 3.0));
+        int height = (int) Math.round(megapixels * 1e6 / width);
+        double mp = width * (double) height / 1e6;
+
+        byte[] pixels = createGrayImage(width, height);
+        GrayImage8 grayImg = new GrayImage8(pixels, width, height, width);
+        int[][] intArr = ImageJUtility.convertFrom1DByteArr(pixels, width, height);
+        DoubleImage doubleImg = ImageJUtility.toDoubleImage(grayImg);
+        FloatImage floatImg = ImageJUtility.toFloatImage(grayImg);
+        int[] inversionTF = ImageTransformationFilter.getInversionTF(255);
+
+        // ImageJUtility conversions
+        bench("convertFrom1DByteArr", mp, () -> ImageJUtility.convertFrom1DByteArr(pixels, width, height));
+        bench("convertFrom2DIntArr", mp, () -> ImageJUtility.convertFrom2DIntArr(intArr, width, height));
+        bench("toDoubleImage (flat)", mp, () -> ImageJUtility.toDoubleImage(grayImg));
+
+        // ImageTransformationFilter LUT application
+        bench("getTransformedImage int[][]", mp, () -> ImageTransformationFilter.getTransformedImage(intArr, width, height, inversionTF));
+        bench("getTransformedImage flat", mp, () -> ImageTransformationFilter.getTransformedImage(grayImg, inversionTF));
+
+        // ConvolutionFilter at several radii, mean (box), Gaussian (separable) and a general kernel (direct/FFT)
+        for (int radius : new int[]{1, 4, 16}) {
+            double[][] meanMask = ConvolutionFilter.getMeanMask(radius);
+            double[][] gaussMask = getGaussMask(radius);
+            double[][] generalMask = getGeneralMask(radius);
+            bench("convolveDouble mean r=" + radius, mp, () -> ConvolutionFilter.convolveDouble(doubleImg, meanMask, radius));
+            bench("convolveDouble gauss r=" + radius, mp, () -> ConvolutionFilter.convolveDouble(doubleImg, gaussMask, radius));
+            bench("convolveDouble general r=" + radius, mp, () -> ConvolutionFilter.convolveDouble(doubleImg, generalMask, radius));
+            bench("convolveDoubleParallel general r=" + radius, mp, () -> ConvolutionFilter.convolveDoubleParallel(doubleImg, generalMask, radius));
+            bench("convolveFloat general r=" + radius, mp, () -> ConvolutionFilter.convolveFloat(floatImg, generalMask, radius));
+        }
+
+        // per-loop kernels restructured for the JIT's auto-vectorizer: the direct interior, the SSE reduction and
+        // the Sobel_ max-abs normalization
+        DoubleImage directOut = new DoubleImage(width, height);
+        for (int radius : new int[]{1, 3, 7}) {
+            double[][] generalMask = getGeneralMask(radius);
+            bench("convolveDirect r=" + radius, mp, () -> {
+                ConvolutionFilter.convolveDirect(doubleImg, directOut, generalMask, radius, false);
+                return directOut;
+            });
+        }
+        Registration_ registration = new Registration_();
+        int[][] movedArr = registration.transformImg(intArr, width, height, 4.0, -2.0, 2.0);
+        bench("Registration_.getImgDiffSSE", mp, () -> registration.getImgDiffSSE(intArr, movedArr, width, height));
+        byte[] sobelPixels = new byte[pixels.length];
+        bench("Sobel_ inplace", mp, () -> {
+            System.arraycopy(pixels, 0, sobelPixels, 0, pixels.length);
+            ByteProcessor bp = new ByteProcessor(width, height, sobelPixels);
+            Sobel_ sobel = new Sobel_();
+            sobel.setup("inplace", new ImagePlus("sobel", bp));
+            sobel.run(bp);
+            return bp;
+        });
+
+        if (mp > HEAVY_MAX_MP) {
+            return;
+        }
+
+        // Registration_.getRegisteredImage on a shifted and rotated copy
+        bench("Registration_.getRegisteredImage", mp, () -> registration.getRegisteredImage(intArr, movedArr, width, height));
+
+        // RegionGrowing_ flood fill from a seed in a large homogeneous region
+        ImagePlus regionImp = new ImagePlus("region", new ByteProcessor(width, height, createRegionImage(width, height)));
+        regionImp.setRoi(new PointRoi(width / 2, height / 2));
+        bench("RegionGrowing_ flood fill", mp, () -> {
+            RegionGrowing_ regionGrowing = new RegionGrowing_();
+            regionGrowing.setup("", regionImp);
+            regionGrowing.run(regionImp.getProcessor());
+            return regionImp;
+        });
+
+        // full CoinCounter_ pipeline on a synthetic coin photo
+        int[] coinPixels = createCoinImage(width, height);
+        bench("CoinCounter_ pipeline", mp, () -> {
+            ColorProcessor cp = new ColorProcessor(width, height, coinPixels.clone());
+            ImagePlus coinImp = new ImagePlus("coins", cp);
+            CoinCounter_ coinCounter = new CoinCounter_();
+            coinCounter.setup("", coinImp);
+            coinCounter.run(cp);
+            return cp;
+        });
+    }
+
+    private static void bench(String name, double megapixels, Op op) {
+        if (!name.contains(FILTER)) {
+            return;
+        }
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            consume(op.run());
+        }
+
+        int iterations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            consume(op.run());
+            iterations++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < MIN_RUN_NANOS);
+
+        double msPerOp = elapsed / 1e6 / iterations;
+        REPORT.printf("%-42s %8.1f %6d %12.2f %10.1f%n", name, megapixels, iterations, msPerOp, megapixels / (msPerOp / 1000.0));
+    }
+
+    private static void consume(Object result) {
+        blackhole += System.identityHashCode(result);
+        // windows that plugins opened in batch mode are dropped right away
+        for (int id : Interpreter.getBatchModeImageIDs()) {
+            Interpreter.removeBatchModeImage(WindowManager.getImage(id));
+        }
+    }
+
+    // SYNTHETIC IMAGES
+
+    static byte[] createGrayImage(int width, int height) {
+        Random random = new Random(42);
+        byte[] pixels = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int val = (x * 255 / width + y * 255 / height) / 2 + random.nextInt(32) - 16;
+                pixels[y * width + x] = (byte) Math.max(0, Math.min(255, val));
+            }
+        }
+        return pixels;
+    }
+
+    private static byte[] createRegionImage(int width, int height) {
+        ByteProcessor bp = new ByteProcessor(width, height);
+        bp.setValue(30);
+        bp.fill();
+        bp.setValue(120);
+        bp.fillOval(width / 10, height / 10, width * 8 / 10, height * 8 / 10);
+        return (byte[]) bp.getPixels();
+    }
+
+    private static int[] createCoinImage(int width, int height) {
+        ColorProcessor cp = new ColorProcessor(width, height);
+        cp.setColor(new Color(200, 200, 195));
+        cp.fill();
+
+        // 30 mm reference marker, scale about 1/60 of the image width per 5 mm
+        double pixelsPerMM = width / 120.0;
+        cp.setColor(Color.black);
+        cp.fillRect((int) (5 * pixelsPerMM), (int) (5 * pixelsPerMM), (int) (8 * pixelsPerMM), (int) (30 * pixelsPerMM));
+
+        // bronze and gold coins of different diameters (mm)
+        Color bronze = new Color(150, 90, 55);
+        Color gold = new Color(170, 150, 80);
+        double[] diameters = {16.25, 18.75, 21.25, 19.75, 22.25, 24.25};
+        Color[] colors = {bronze, bronze, bronze, gold, gold, gold};
+        for (int i = 0; i < diameters.length; i++) {
+            int d = (int) (diameters[i] * pixelsPerMM);
+            int cx = (int) ((25 + (i % 3) * 30) * pixelsPerMM);
+            int cy = (int) ((10 + (i / 3) * 35) * pixelsPerMM);
+            cp.setColor(colors[i]);
+            cp.fillOval(cx, cy, d, d);
+        }
+        return (int[]) cp.getPixels();
+    }
+
+    static double[][] getGaussMask(int radius) {
+        double sigma = Math.max(0.5, radius / 2.0);
+        int size = 2 * radius + 1;
+        double[][] mask = new double[size][size];
+        double sum = 0.0;
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                mask[x][y] = Math.exp(-((x - radius) * (x - radius) + (y - radius) * (y - radius)) / (2 * sigma * sigma));
+                sum += mask[x][y];
+            }
+        }
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                mask[x][y] /= sum;
+            }
+        }
+        return mask;
+    }
+
+    static double[][] getGeneralMask(int radius) {
+        // not separable, not constant: forces the direct or FFT path
+        Random random = new Random(radius);
+        int size = 2 * radius + 1;
+        double[][] mask = new double[size][size];
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                mask[x][y] = random.nextDouble() / (size * size);
+            }
+        }
+        return mask;
+    }
+
+}
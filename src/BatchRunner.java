@@ -0,0 +1,279 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+import ij.plugin.filter.PlugInFilter;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless batch entry point: streams every image of a folder through one of the src/ PlugInFilters on a bounded
+ * thread pool. Result images are written as TIFF or PNG (FileResultSink), numeric results of all images into
+ * results.csv in the output folder, together with the processing time per image. Result tables (e.g. one row per
+ * coin of CoinCounter_) of all images go into one &lt;title&gt;.csv per table, with the image name and slice as
+ * leading columns. Each worker opens its image itself, so at most one image per thread is in memory.
+ *
+ * <pre>
+ * java -Djava.awt.headless=true -cp ij.jar:plugins/Custom BatchRunner &lt;plugin&gt; &lt;inputDir&gt; &lt;outputDir&gt;
+ *      [-threads n] [-format tif|png|none] [-arg inplace] [-options "tmin=100 tmax=200"]
+ * </pre>
+ *
+ * -options replaces the plugins dialogs (same keys as in ImageJ macros), -arg is passed to setup(), -format none
+ * skips the result images for runs that only need the numbers. Workers never open dialogs, also without -options
+ * and without java.awt.headless.
+ */
+public class BatchRunner {
+
+    private static final String[] IMAGE_EXTENSIONS = {".tif", ".tiff", ".png", ".jpg", ".jpeg", ".gif", ".bmp"};
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 3) {
+            exitWithUsage(null);
+        }
+
+        String pluginClass = args[0];
+        File inputDir = new File(args[1]);
+        File outputDir = new File(args[2]);
+        int threads = ParallelUtility.getThreadCount();
+        String format = "tif";
+        String arg = "";
+        String options = null;
+
+        for (int i = 3; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                exitWithUsage("missing value for " + args[i]);
+            }
+            switch (args[i]) {
+                case "-threads":
+                    threads = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-format":
+                    format = args[i + 1];
+                    break;
+                case "-arg":
+                    arg = args[i + 1];
+                    break;
+                case "-options":
+                    options = args[i + 1];
+                    break;
+                default:
+                    exitWithUsage("unknown option " + args[i]);
+            }
+        }
+
+        long start = System.nanoTime();
+        int processed = run(pluginClass, inputDir, outputDir, threads, format, arg, options);
+        double hours = (System.nanoTime() - start) / 3.6e12;
+        System.out.printf(Locale.ROOT, "%d images in %.1f s (%.0f images/hour)%n", processed, hours * 3600.0,
+                processed / hours);
+        System.exit(0);
+    }
+
+    /**
+     * @param message what was wrong with the arguments, null for none
+     */
+    private static void exitWithUsage(String message) {
+        if (message != null) {
+            System.err.println(message);
+        }
+        System.err.println("usage: BatchRunner <plugin> <inputDir> <outputDir> [-threads n] [-format tif|png|none] "
+                + "[-arg text] [-options \"key=value ...\"]");
+        System.exit(1);
+    }
+
+    /**
+     * @param pluginClass class name of the PlugInFilter, e.g. "CoinCounter_"
+     * @param inputDir    folder with the input images
+     * @param outputDir   folder for result images, results.csv and the table CSVs, created if missing
+     * @param threads     number of images processed at the same time
+     * @param format      "tif", "png" or "none"
+     * @param arg         argument passed to the plugins setup method
+     * @param options     macro options replacing the plugins dialogs, may be null
+     * @return number of successfully processed images
+     */
+    public static int run(String pluginClass, File inputDir, File outputDir, int threads, String format, String arg,
+                          String options) throws IOException, InterruptedException {
+        File[] files = inputDir.listFiles(BatchRunner::isImageFile);
+        if (files == null) {
+            throw new IOException("not a folder: " + inputDir);
+        }
+        Arrays.sort(files);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("could not create " + outputDir);
+        }
+
+        // bounded queue, the submitting thread helps out when it is full
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads), new ThreadPoolExecutor.CallerRunsPolicy());
+
+        List<Future<FileResultSink>> futures = new ArrayList<>();
+        for (File file : files) {
+            futures.add(executor.submit(() -> processImage(pluginClass, file, outputDir, format, arg, options)));
+        }
+
+        int processed = 0;
+        Map<String, ResultsTable> tables = new LinkedHashMap<>();
+        try (PrintWriter csv = new PrintWriter(new File(outputDir, "results.csv"), "UTF-8")) {
+            csv.println("image,result,value");
+            for (int i = 0; i < files.length; i++) {
+                try {
+                    FileResultSink sink = futures.get(i).get();
+                    for (String[] row : sink.getResults()) {
+                        csv.println(toCsvRow(row));
+                    }
+                    for (Map.Entry<String, ResultsTable> entry : sink.getTables().entrySet()) {
+                        appendRows(entry.getValue(), tables.computeIfAbsent(entry.getKey(), key -> new ResultsTable()));
+                    }
+                    processed++;
+                } catch (ExecutionException e) {
+                    System.err.println(files[i].getName() + ": " + e.getCause());
+                }
+            }
+        }
+
+        executor.shutdown();
+
+        for (Map.Entry<String, ResultsTable> entry : tables.entrySet()) {
+            writeTable(entry.getValue(),
+                    new File(outputDir, entry.getKey().replaceAll("[^A-Za-z0-9.-]+", "_") + ".csv"));
+        }
+        return processed;
+    }
+
+    /**
+     * writes the columns of the table without row numbers, values formatted as in ImageJ's own CSV export.
+     * ResultsTable.saveAs is not used, it quotes fields with a comma but not the quotes inside them.
+     */
+    private static void writeTable(ResultsTable table, File file) throws IOException {
+        String[] headings = table.getHeadings();
+        try (PrintWriter csv = new PrintWriter(file, "UTF-8")) {
+            csv.println(toCsvRow(headings));
+            for (int row = 0; row < table.size(); row++) {
+                String[] fields = new String[headings.length];
+                for (int column = 0; column < headings.length; column++) {
+                    fields[column] = table.getStringValue(headings[column], row);
+                }
+                csv.println(toCsvRow(fields));
+            }
+        }
+    }
+
+    /**
+     * @return the fields as one CSV line (RFC 4180): fields containing a comma, quote or line break are quoted,
+     * quotes inside doubled
+     */
+    private static String toCsvRow(String[] fields) {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            String field = fields[i];
+            if (field.contains(",") || field.contains("\"") || field.contains("\n") || field.contains("\r")) {
+                line.append('"').append(field.replace("\"", "\"\"")).append('"');
+            } else {
+                line.append(field);
+            }
+        }
+        return line.toString();
+    }
+
+    private static void appendRows(ResultsTable source, ResultsTable target) {
+        for (int row = 0; row < source.size(); row++) {
+            target.incrementCounter();
+            FileResultSink.copyRow(source, row, target);
+        }
+    }
+
+    private static boolean isImageFile(File file) {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        for (String extension : IMAGE_EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return file.isFile();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * runs the plugin on all slices of one image, with a FileResultSink and the macro options bound to this thread
+     */
+    private static FileResultSink processImage(String pluginClass, File file, File outputDir, String format,
+                                               String arg, String options) throws Exception {
+        long start = System.nanoTime();
+        ImagePlus imp = IJ.openImage(file.getPath());
+        if (imp == null) {
+            throw new IOException("could not open " + file);
+        }
+
+        String imageName = file.getName().replaceFirst("\\.[^.]+$", "");
+        FileResultSink sink = new FileResultSink(outputDir, imageName, format);
+        ImageJUtility.setResultSink(sink);
+        // empty options still mean "no dialogs": plugins fall back to their defaults instead of blocking the worker
+        ImageJUtility.setMacroOptions(options != null ? options : "");
+        try {
+            PlugInFilter plugin = (PlugInFilter) Class.forName(pluginClass).getDeclaredConstructor().newInstance();
+            int flags = plugin.setup(arg, imp);
+            if ((flags & PlugInFilter.DONE) != 0) {
+                throw new IllegalStateException("setup canceled");
+            }
+            if (!supportsType(flags, imp)) {
+                throw new IllegalArgumentException("image type not supported by " + pluginClass);
+            }
+            if ((flags & PlugInFilter.ROI_REQUIRED) != 0 && imp.getRoi() == null) {
+                throw new IllegalArgumentException(pluginClass + " requires a selection");
+            }
+
+            if ((flags & PlugInFilter.DOES_STACKS) != 0 && imp.getStackSize() > 1) {
+                for (int slice = 1; slice <= imp.getStackSize(); slice++) {
+                    ImageProcessor ip = imp.getStack().getProcessor(slice);
+                    plugin.run(ip);
+                }
+            } else {
+                plugin.run(imp.getProcessor());
+            }
+
+            if (arg.equals("inplace")) {
+                imp.setTitle("inplace");
+                sink.showImage(imp);
+            }
+        } finally {
+            ImageJUtility.setResultSink(null);
+            ImageJUtility.setMacroOptions(null);
+        }
+
+        sink.putResult("processingMillis", (System.nanoTime() - start) / 1e6);
+        return sink;
+    }
+
+    private static boolean supportsType(int flags, ImagePlus imp) {
+        switch (imp.getType()) {
+            case ImagePlus.GRAY8:
+                return (flags & PlugInFilter.DOES_8G) != 0;
+            case ImagePlus.COLOR_256:
+                return (flags & PlugInFilter.DOES_8C) != 0;
+            case ImagePlus.GRAY16:
+                return (flags & PlugInFilter.DOES_16) != 0;
+            case ImagePlus.GRAY32:
+                return (flags & PlugInFilter.DOES_32) != 0;
+            case ImagePlus.COLOR_RGB:
+                return (flags & PlugInFilter.DOES_RGB) != 0;
+            default:
+                return false;
+        }
+    }
+
+}
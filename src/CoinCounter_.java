@@ -1,14 +1,14 @@
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.GenericDialog;
+import ij.measure.ResultsTable;
 import ij.plugin.ContrastEnhancer;
 import ij.plugin.LutLoader;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.*;
 
-import java.awt.*;
+import java.io.File;
 import java.util.*;
-import java.util.List;
 
 /**
  * Plugin that counts up values for given Euro coins from an image.
@@ -33,394 +33,423 @@ public class CoinCounter_ implements PlugInFilter {
 
 	public static final int FG_VAL = 255;
 	public static final int BG_VAL = 0;
-	public static final int UNPROCESSED_VAL = -1;
 
 	// hyperparameters that might be tweaked (segmentation and classification)
 	public static final int BRIGHTNESS_INCREASE = 80; // in pixels
 	public static final float RED_TO_GREEN_CUTOFF = 1.2F; // for classification: close to one is less strict
 		// about "bronziness"
 
+	// Hough circle segmentation: coin radii from 1 cent (16.25 mm) to 2 euro (25.75 mm) with some slack, the 30 mm
+	// reference marker is out of range
+	public static final double HOUGH_MIN_RADIUS_MM = 7.0;
+	public static final double HOUGH_MAX_RADIUS_MM = 13.5;
+	public static final int HOUGH_SMOOTHING_RADIUS = 2; // mean filter before the gradients, steadies their direction
+	public static final double HOUGH_EDGE_FRACTION = 0.1; // edge pixels: gradient magnitude relative to the maximum
+	public static final double HOUGH_MIN_VOTES = 0.25; // per pixel of the smallest circumference
+	public static final double HOUGH_MIN_SUPPORT = 0.5; // supporting edge pixels per pixel of the circumference
+
+	// watershed segmentation: coin cores at least this far from the background become the markers, half the radius of
+	// the smallest coin, so touching coins keep separate cores
+	public static final double WATERSHED_MARKER_MM = 4.0;
+
+	public static final String[] SEGMENTATIONS = {"region growing", "hough circles", "watershed"};
+
+	private String segmentation = SEGMENTATIONS[0];
+
+	// Part 1 works on one code byte per pixel (the gray image is overwritten), bits:
+	private static final int MARKER_CANDIDATE = 1; // in the reference marker threshold range
+	private static final int COIN_CANDIDATE = 2; // in the coin threshold range after the brightness increase
+	private static final int MARKER = 4; // grown reference marker
+
 	public int setup(String arg, ImagePlus imp) {
 		if (arg.equals("about"))
 			{showAbout(); return DONE;}
+
+		if (ImageJUtility.useMacroOptions()) {
+			// batch runs: "segmentation=[hough circles]"
+			segmentation = ImageJUtility.getMacroParameter("segmentation", segmentation);
+		} else {
+			GenericDialog gd = new GenericDialog("User setup");
+			gd.addChoice("Segmentation", SEGMENTATIONS, segmentation);
+			gd.showDialog();
+			if (gd.wasCanceled()) {
+				return DONE;
+			}
+			segmentation = gd.getNextChoice();
+		}
+		if (!Arrays.asList(SEGMENTATIONS).contains(segmentation)) {
+			throw new IllegalArgumentException("unknown segmentation: " + segmentation);
+		}
+
 		return DOES_RGB+DOES_STACKS+SUPPORTS_MASKING; // RGB image assumed
 	} //setup
 
 
 	// UTILITIES
 
-	private List<Point> getSeedPointsFromBinarySegmentation(int[][] transformedImage, int fg_val) {
-		int width = transformedImage.length;
-		int height = transformedImage[0].length;
+	/**
+	 * Longest vertical run of marker candidates, fed row by row but in the order of a column by column scan: a run
+	 * continues from the bottom of one column to the top of the next. Per column only the run touching the top, the
+	 * first longest run in between and the run still open at the bottom are kept.
+	 */
+	private static class VerticalRunFinder {
+		private final int width;
+		private final int height;
+		private final int[] openRun; // current run per column
+		private final int[] topRun; // run starting at y = 0, final once the column is interrupted
+		private final int[] innerRun; // first longest run between two background pixels
+		private final int[] innerRunEndY;
+		private final boolean[] interrupted;
+
+		VerticalRunFinder(int width, int height) {
+			this.width = width;
+			this.height = height;
+			openRun = new int[width];
+			topRun = new int[width];
+			innerRun = new int[width];
+			innerRunEndY = new int[width];
+			interrupted = new boolean[width];
+		}
 
-		List<Point> seedPoints = new ArrayList<>();
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				if (transformedImage[x][y] >= fg_val) {
-					seedPoints.add(new Point(x, y));
+		void add(int x, int y, boolean candidate) {
+			if (candidate) {
+				openRun[x]++;
+			} else {
+				if (!interrupted[x]) {
+					topRun[x] = openRun[x];
+					interrupted[x] = true;
+				} else if (openRun[x] > innerRun[x]) {
+					innerRun[x] = openRun[x];
+					innerRunEndY[x] = y - 1;
 				}
+				openRun[x] = 0;
 			}
 		}
 
-		//System.out.println("found " + seedPoints.size() + " seed points");
-
-		return seedPoints;
-	}
-
-	private int[][] regionGrow(int[][] initImg, int initVal, int neighborhood, double tolerance, List<Point> seedPoints) {
-		// seedPoints is basically the initial segmentation here
-		int width = initImg.length;
-		int height = initImg[0].length;
-
-		int[][] segmentedImg = new int[width][height];
-
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				segmentedImg[x][y] = UNPROCESSED_VAL;
+		/**
+		 * @return {x, y, length - 1} of the last pixel of the first longest run (at least two pixels), {-1, -1, 0}
+		 * if there is none
+		 */
+		int[] getLongest() {
+			int[] longest = {-1, -1, 0};
+			int longestRun = 1;
+			int carry = 0; // run reaching the bottom of the previous column
+			for (int x = 0; x < width; x++) {
+				if (!interrupted[x]) {
+					carry += height;
+					continue;
+				}
+				if (carry + topRun[x] > longestRun) {
+					longestRun = carry + topRun[x];
+					longest = topRun[x] > 0 ? new int[]{x, topRun[x] - 1, 0} : new int[]{x - 1, height - 1, 0};
+				}
+				if (innerRun[x] > longestRun) {
+					longestRun = innerRun[x];
+					longest = new int[]{x, innerRunEndY[x], 0};
+				}
+				carry = openRun[x];
+			}
+			if (carry > longestRun) {
+				longestRun = carry;
+				longest = new int[]{width - 1, height - 1, 0};
 			}
+			longest[2] = longestRun - 1;
+			return longest;
 		}
+	}
 
-		int lowerThresh = Math.max(0, (int) (initVal - tolerance + 0.5));
-		int upperThresh = Math.min(255, (int) (initVal + tolerance + 0.5));
-
-		Deque<Point> processingStack = new ArrayDeque<>();
-		int fgCount = 0;
-
-		for (Point p : seedPoints) {
-			int actVal = initImg[p.x][p.y]; // not inDataArrInt[][]
-			if (segmentedImg[p.x][p.y] == UNPROCESSED_VAL) {
-				if (actVal >= lowerThresh && actVal <= upperThresh) {
-					segmentedImg[p.x][p.y] = FG_VAL;
-					processingStack.push(p);
-					fgCount++;
-				} else {
-					segmentedImg[p.x][p.y] = BG_VAL;
-				}
-			}
+	/**
+	 * region growing over the MARKER_CANDIDATE pixels of the code image: sets MARKER on all candidates connected to
+	 * the seed within the (2 * neighborhood + 1)^2 window
+	 *
+	 * @return number of marker pixels
+	 */
+	private int growMarker(byte[] codes, int width, int height, int seedX, int seedY, int neighborhood) {
+		int seedIdx = seedY * width + seedX;
+		if ((codes[seedIdx] & MARKER_CANDIDATE) == 0) {
+			return 0;
 		}
 
-		while (!processingStack.isEmpty()) {
-			Point actPos = processingStack.pop();
-
-			for (int xOffset = -neighborhood; xOffset <= neighborhood; xOffset++) {
-				for (int yOffset = -neighborhood; yOffset <= neighborhood; yOffset++) {
-					int nbX = actPos.x + xOffset;
-					int nbY = actPos.y + yOffset;
-
-					if (nbX >= 0 && nbX < width && nbY >= 0 && nbY < height) {
-						int actVal = initImg[nbX][nbY];
-						if (segmentedImg[nbX][nbY] == UNPROCESSED_VAL) {
-							if (actVal >= lowerThresh && actVal <= upperThresh) {
-								segmentedImg[nbX][nbY] = FG_VAL;
-								processingStack.push(new Point(nbX, nbY));
-								fgCount++;
-							} else {
-								segmentedImg[nbX][nbY] = BG_VAL;
-							}
+		int[] stack = new int[1024];
+		int stackSize = 0;
+		codes[seedIdx] |= MARKER;
+		stack[stackSize++] = seedIdx;
+		int fgCount = 1;
+
+		while (stackSize > 0) {
+			int actIdx = stack[--stackSize];
+			int actX = actIdx % width;
+			int actY = actIdx / width;
+
+			for (int nbY = Math.max(0, actY - neighborhood); nbY <= Math.min(height - 1, actY + neighborhood); nbY++) {
+				for (int nbX = Math.max(0, actX - neighborhood); nbX <= Math.min(width - 1, actX + neighborhood); nbX++) {
+					int nbIdx = nbY * width + nbX;
+					if ((codes[nbIdx] & (MARKER_CANDIDATE | MARKER)) == MARKER_CANDIDATE) {
+						codes[nbIdx] |= MARKER;
+						if (stackSize == stack.length) {
+							stack = Arrays.copyOf(stack, 2 * stackSize);
 						}
+						stack[stackSize++] = nbIdx;
+						fgCount++;
 					}
 				}
 			}
 		}
 
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				if (segmentedImg[x][y] == UNPROCESSED_VAL) {
-					segmentedImg[x][y] = 0;
-				}
+		return fgCount;
+	}
+
+	/**
+	 * @return 0/255 image of the pixels with all bits of code set
+	 */
+	private byte[] getCodeMask(byte[] codes, int code) {
+		byte[] mask = new byte[codes.length];
+		for (int i = 0; i < codes.length; i++) {
+			if ((codes[i] & code) == code) {
+				mask[i] = (byte) FG_VAL;
 			}
 		}
-
-		//System.out.println("added " + fgCount + " neighbors to foreground");
-
-		return segmentedImg;
+		return mask;
 	}
 
-	private int[][] subtract(int[][] first, int[][] second, int targetVal) {
-		// subtract second from first
-		int width = first.length;
-		int height = first[0].length;
-
-		int[][] subtracted = new int[width][height];
-
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				if (second[x][y] >= targetVal) {
-					subtracted[x][y] = BG_VAL;
-				} else {
-					subtracted[x][y] = first[x][y];
-				}
-			}
+	/**
+	 * @param coinMask 0/255 segmentation, row-major
+	 * @return labels 1..n of the valid regions in row-major order, 0 elsewhere
+	 */
+	private int[] regionLabel(byte[] coinMask, int width, int height) {
+		// union-find labelling, size and edge contact of every region come out of the same pass
+		ConnectedComponents components = ConnectedComponents.label(coinMask, width, height, true, true);
+
+		// plausibility check: many regions that are not even visible are in the 10 - 20 pixel range,
+		// regions touching the edge are not valid either
+		boolean[] keep = new boolean[components.count + 1];
+		for (int label = 1; label <= components.count; label++) {
+			keep[label] = components.sizes[label] >= 10000 && !components.touchesEdge[label];
 		}
 
-		return subtracted;
+		// valid regions numbered without gaps, in the order of a column by column scan
+		return components.relabel(keep);
 	}
 
-	private int[][] regionLabel(int[][] segmentedImg) {
-		// this function was designed for black (background) and white (target) segmented images
-		int targetVal = 255;
-		int backgroundVal = 0;
-
-		int neighborhood = 1; // hyperparameter
+	/**
+	 * gradient-directed Hough transform on the Sobel gradients, radius range from the reference marker scale
+	 */
+	private HoughCircles detectCoins(FloatImage gradX, FloatImage gradY, double referenceScalingFactor) {
+		float maxMagnitude = 0.0F;
+		for (int i = 0; i < gradX.pixels.length; i++) {
+			maxMagnitude = Math.max(maxMagnitude, gradX.pixels[i] * gradX.pixels[i] + gradY.pixels[i] * gradY.pixels[i]);
+		}
+		double edgeThreshold = HOUGH_EDGE_FRACTION * Math.sqrt(maxMagnitude);
 
-		int width = segmentedImg.length;
-		int height = segmentedImg[0].length;
+		// without a plausible marker the range can be far off, no circle is larger than the image though
+		int minRadius = Math.max(1, (int) (HOUGH_MIN_RADIUS_MM * referenceScalingFactor));
+		int maxRadius = Math.min((int) Math.ceil(HOUGH_MAX_RADIUS_MM * referenceScalingFactor),
+				Math.min(gradX.width, gradX.height) / 2);
+		int minVotes = (int) (HOUGH_MIN_VOTES * 2.0 * Math.PI * minRadius);
 
-		int[][] labeled = new int[width][height];
+		return HoughCircles.detect(gradX, gradY, edgeThreshold, minRadius, maxRadius, minVotes, HOUGH_MIN_SUPPORT, true);
+	}
 
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				labeled[x][y] = UNPROCESSED_VAL;
-			}
+	/**
+	 * @return votes scaled to [0;255] for display
+	 */
+	private GrayImage8 getAccumulatorImage(IntImage accumulator) {
+		int maxVotes = 1;
+		for (int votes : accumulator.pixels) {
+			maxVotes = Math.max(maxVotes, votes);
 		}
+		GrayImage8 outImg = new GrayImage8(accumulator.width, accumulator.height);
+		for (int i = 0; i < accumulator.pixels.length; i++) {
+			outImg.pixels[i] = (byte) (accumulator.pixels[i] * 255 / maxVotes);
+		}
+		return outImg;
+	}
 
-		// now go over the image: once a target value is encountered
-		// start region growing process with label 1, pause going throw the image!
-		// when done increment label, continue
-		// plausibility checks to add: minimum region size prob, shape? --> set those labels to background 0
-
-		int currentRegionLabel = 1;
-
-		// go over the while image
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				if (segmentedImg[x][y] >= targetVal && currentRegionLabel < 255 && labeled[x][y] == UNPROCESSED_VAL) {
-					// segmented spot found, id still within range, and equivalent point in the output labeled image is not yet worked!
-
-					// START one point region grow from here
-					List<Point> seedPoints = new ArrayList<>();
-					seedPoints.add(new Point(x, y));
-
-					// region growing for this label id now, i.e. setting the region to this label value
-
-					Deque<Point> processingStack = new ArrayDeque<>();
-					int fgCount = 0;
-
-					// for plausibility check later (possible reversion)
-					Deque<Point> processedStack = new ArrayDeque<>();
-
-					// another criterion for plausibility
-					boolean touchesEdgeOfImg = false;
-
-					// analogously to region growing
-					for (Point p : seedPoints) {
-						int actVal = segmentedImg[p.x][p.y];
-						if (actVal >= targetVal) {
-							labeled[p.x][p.y] = currentRegionLabel;
-							processingStack.push(p);
-							fgCount++;
-						} else {
-							labeled[p.x][p.y] = BG_VAL;
-						}
-					}
+	/**
+	 * rasterizes the detected coins into a label image, labels 1..n in column-major order of the leftmost pixel like
+	 * regionLabel. Circles reaching over the image border (like regions touching the edge) and the reference marker
+	 * are left out, pixels covered by two circles go to the nearer center.
+	 *
+	 * @param widthsPerLabel output: diameter in pixels per label
+	 */
+	private int[] getCircleLabels(HoughCircles circles, int width, int height, double markerX, double markerY,
+								  double markerRadius, Map<Integer, Integer> widthsPerLabel) {
+		int[] labels = new int[width * height];
+		List<Integer> circleOfLabel = new ArrayList<>();
+		circleOfLabel.add(-1);
+
+		Integer[] order = new Integer[circles.count];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, Comparator.comparingDouble((Integer i) -> Math.ceil(circles.centerX[i] - circles.radius[i]))
+				.thenComparingDouble(i -> circles.centerY[i]));
+
+		for (int i : order) {
+			double cx = circles.centerX[i];
+			double cy = circles.centerY[i];
+			int r = circles.radius[i];
+			if (cx - r < 0 || cy - r < 0 || cx + r > width - 1 || cy + r > height - 1) {
+				continue;
+			}
+			if (Math.hypot(cx - markerX, cy - markerY) < markerRadius) {
+				continue;
+			}
 
-					while (!processingStack.isEmpty()) {
-						Point actPos = processingStack.pop();
-
-						for (int xOffset = -neighborhood; xOffset <= neighborhood; xOffset++) {
-							for (int yOffset = -neighborhood; yOffset <= neighborhood; yOffset++) {
-								int nbX = actPos.x + xOffset;
-								int nbY = actPos.y + yOffset;
-
-								if (nbX >= 0 && nbX < width && nbY >= 0 && nbY < height) {
-									int actVal = segmentedImg[nbX][nbY];
-									if (labeled[nbX][nbY] == UNPROCESSED_VAL) {
-										if (actVal >= targetVal) {
-											labeled[nbX][nbY] = currentRegionLabel;
-											processingStack.push(new Point(nbX, nbY));
-
-											// add as processed actually processed points
-											processedStack.push(new Point(nbX, nbY));
-
-											fgCount++;
-										} else {
-											labeled[nbX][nbY] = BG_VAL;
-										}
-									}
-								} else if (nbX == 0 || nbX == width - 1 || nbY == 0 || nbY == height - 1) {
-									// grown region touches edge
-									touchesEdgeOfImg = true;
-								}
-							}
-						}
+			int label = circleOfLabel.size();
+			circleOfLabel.add(i);
+			widthsPerLabel.put(label, 2 * r);
 
+			for (int y = (int) Math.ceil(cy - r); y <= (int) Math.floor(cy + r); y++) {
+				for (int x = (int) Math.ceil(cx - r); x <= (int) Math.floor(cx + r); x++) {
+					double distance = Math.hypot(x - cx, y - cy);
+					if (distance > r) {
+						continue;
 					}
-
-					// plausibility check based on fgCount, i.e. labeled region size
-
-					//System.out.println(currentRegionLabel + " labeled region has size " + fgCount);
-					// many regions that are not even visible in the 10 - 20 range!
-
-					if (fgCount < 10000 || touchesEdgeOfImg) {
-						// revert to background (not a valid region)
-						while (!processedStack.isEmpty()) {
-							Point p = processedStack.pop();
-							labeled[p.x][p.y] = BG_VAL;
-						}
-
-						// don't forget seedpoint!
-						for (Point p : seedPoints) {
-							labeled[p.x][p.y] = BG_VAL;
-						}
-
-						// don't increase the label if set
-						// proper functioning if |artefacts| > 255 actually requires this
-						//		because of artefacts, I ended up with unprocessed regions otherwise
-						//		in the logic of this method
-						// side effect is that there are no gaps, which is good actually
-					} else {
-						// finally increase the label
-						currentRegionLabel += 1;
+					int idx = y * width + x;
+					int other = labels[idx] > 0 ? circleOfLabel.get(labels[idx]) : -1;
+					if (other < 0 || distance < Math.hypot(x - circles.centerX[other], y - circles.centerY[other])) {
+						labels[idx] = label;
 					}
-					// END one point region grow
-				} else if (segmentedImg[x][y] == backgroundVal) {
-					labeled[x][y] = backgroundVal;
 				}
-
 			}
 		}
 
-		return labeled;
+		return labels;
 	}
 
-	private int countRegions(int[][] labeledRegions) {
-		int count = 0;
-		// I implemented no gap labeling, so it would be as simple as returning highest label encountered
-		// but here is a more generic way that could also deal with gaps
+	/**
+	 * splits touching coins in the valid regions: the cores of the distance transform are the markers, the
+	 * watershed floods the regions from there down to the background. A region without a core (smaller than any
+	 * coin) is its own marker and stays as it is.
+	 *
+	 * @return labels 1..n in the order of a column by column scan like regionLabel, 0 elsewhere
+	 */
+	private int[] splitTouchingCoins(int[] labeledImg, int width, int height, double referenceScalingFactor) {
+		// holes left by the thresholds would put extra cores into a single coin, so they are filled for the distances
+		byte[] mask = new byte[labeledImg.length];
+		int regionCount = 0;
+		for (int i = 0; i < labeledImg.length; i++) {
+			if (labeledImg[i] == 0) {
+				mask[i] = (byte) FG_VAL;
+			}
+			regionCount = Math.max(regionCount, labeledImg[i]);
+		}
+		ConnectedComponents background = ConnectedComponents.label(mask, width, height, false, true);
+		boolean[] outside = new boolean[background.count + 1];
+		for (int x = 0; x < width; x++) {
+			outside[background.labels[x]] = true;
+			outside[background.labels[(height - 1) * width + x]] = true;
+		}
+		for (int y = 0; y < height; y++) {
+			outside[background.labels[y * width]] = true;
+			outside[background.labels[y * width + width - 1]] = true;
+		}
+		for (int i = 0; i < labeledImg.length; i++) {
+			mask[i] = labeledImg[i] > 0 || !outside[background.labels[i]] ? (byte) FG_VAL : (byte) BG_VAL;
+		}
+		int[] levels = DistanceTransform.getSquaredDistances(mask, width, height, true);
+
+		// markers and flooding levels from the same pass: the squared distances keep the order of the distances
+		// without the plateaus of rounding them to whole pixels; holes are never flooded, and a mask without any
+		// background (all INF) floods on one level
+		double markerDistance = WATERSHED_MARKER_MM * referenceScalingFactor;
+		boolean[] hasCore = new boolean[regionCount + 1];
+		for (int i = 0; i < levels.length; i++) {
+			boolean core = labeledImg[i] > 0 && levels[i] >= markerDistance * markerDistance;
+			mask[i] = core ? (byte) FG_VAL : (byte) BG_VAL;
+			hasCore[labeledImg[i]] |= core;
+			levels[i] = labeledImg[i] == 0 ? -1 : levels[i] == DistanceTransform.INF ? 0 : levels[i];
+		}
+		for (int i = 0; i < labeledImg.length; i++) {
+			if (labeledImg[i] > 0 && !hasCore[labeledImg[i]]) {
+				mask[i] = (byte) FG_VAL;
+			}
+		}
 
-		int width = labeledRegions.length;
-		int height = labeledRegions[0].length;
+		ConnectedComponents markers = ConnectedComponents.label(mask, width, height, true, true);
+		int[] labels = markers.labels;
+		Watershed.flood(labels, levels, width, height, true);
+
+		// renumber in column-major order of the first pixel of each flooded region
+		int[] firstColumnMajor = new int[markers.count + 1];
+		Arrays.fill(firstColumnMajor, Integer.MAX_VALUE);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int label = labels[y * width + x];
+				firstColumnMajor[label] = Math.min(firstColumnMajor[label], x * height + y);
+			}
+		}
+		Integer[] order = new Integer[markers.count];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i + 1;
+		}
+		Arrays.sort(order, Comparator.comparingInt((Integer label) -> firstColumnMajor[label]));
+		int[] newLabels = new int[markers.count + 1];
+		for (int i = 0; i < order.length; i++) {
+			newLabels[order[i]] = i + 1;
+		}
+		for (int i = 0; i < labels.length; i++) {
+			labels[i] = newLabels[labels[i]];
+		}
 
-		List<Integer> seen = new ArrayList<>();
+		return labels;
+	}
 
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				if (labeledRegions[x][y] != BG_VAL && !seen.contains(labeledRegions[x][y])) {
-					count += 1;
-					seen.add(labeledRegions[x][y]);
-				}
+	private int countRegions(RegionStatistics stats) {
+		// no gap labeling, but labels without pixels are not counted
+		int count = 0;
+		for (int label = 1; label <= stats.count; label++) {
+			if (stats.area[label] > 0) {
+				count += 1;
 			}
 		}
-
 		return count;
 	}
 
-	private Map<Integer, Integer> calculateWidths(int[][] labeledImg) {
-		Map<Integer, Integer> widthsPerLabel = new HashMap<>();
+	private Map<Integer, Integer> calculateWidths(RegionStatistics stats) {
+		// diameter of the circle with the region's area
 		Map<Integer, Integer> diametersPerLabel = new HashMap<>();
-
-		// idea: count the regions to the map, per label, then calculate diameter from the count (equiv. area)
-
-		int width = labeledImg.length;
-		int height = labeledImg[0].length;
-
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				if (labeledImg[x][y] != BG_VAL && widthsPerLabel.containsKey(labeledImg[x][y])) {
-					Integer currentCount = widthsPerLabel.get(labeledImg[x][y]);
-					widthsPerLabel.put(labeledImg[x][y], currentCount + 1);
-				} else  {
-					widthsPerLabel.put(labeledImg[x][y], 1);
-				}
+		for (int label = 1; label <= stats.count; label++) {
+			if (stats.area[label] > 0) {
+				diametersPerLabel.put(label, (int) (stats.getEquivalentDiameter(label) + 0.5)); // in pixels
 			}
 		}
-
-		for (Map.Entry<Integer, Integer> areaSet : widthsPerLabel.entrySet()) {
-			int area = areaSet.getValue();
-			double radius = Math.sqrt(area / Math.PI);
-			Integer diameter = (int) (2 * radius + 0.5); // in pixels
-			diametersPerLabel.put(areaSet.getKey(), diameter);
-		}
-
 		return diametersPerLabel;
 	}
 
 
-	private void show2DGrayscaleWithGlasbey(int[][] gray2D, int width, int height) {
-		byte[] gray1D = ImageJUtility.convertFrom2DIntArr(gray2D, width, height);
+	private void show2DGrayscaleWithGlasbey(int[] labels, int width, int height) {
+		// more than 255 labels reuse the colours 1..255, no region may wrap to 0 and show as background
+		byte[] gray1D = new byte[labels.length];
+		for (int i = 0; i < labels.length; i++) {
+			gray1D[i] = labels[i] > 0 ? (byte) (1 + (labels[i] - 1) % 255) : 0;
+		}
 		ImageProcessor outImgProc = new ByteProcessor(width, height);
 		outImgProc.setPixels(gray1D);
 
-		ImagePlus imp = new ImagePlus("Glasbey LUT Representation", outImgProc);
+		// LUT file loaded directly: IJ.run(imp, "glasbey", "") needs the ImageJ menu bar, so it fails without a display
+		File glasbeyFile = new File(IJ.getDirectory("luts"), "Glasbey.lut");
+		if (glasbeyFile.exists()) {
+			outImgProc.setLut(LutLoader.openLut(glasbeyFile.getPath()));
+		}
 
-		IJ.run(imp, "glasbey","");
-		imp.show();
+		ImagePlus imp = new ImagePlus("Glasbey LUT Representation", outImgProc);
+		ImageJUtility.showImage(imp);
 	}
 
-	private Map<Integer, Integer[]> getMeanRGBs(int[][] labeledImg, ImagePlus imp) {
+	private Map<Integer, Integer[]> getMeanRGBs(RegionStatistics stats) {
 		Map<Integer, Integer[]> meanRGBsPerLabel = new HashMap<>(); // per label, array of three values
 
-		// aux
-		Map<Integer, Integer> pointsSeenPerLabel = new HashMap<>();
-
-		// go over image, calculate running mean per pixel (three channels)
-		int[] pixels = (int[]) imp.getProcessor().getPixels();
-
-		int width = imp.getWidth();
-		int height = imp.getHeight();
-
-		// test rgb conversions: this is the best I could do, but not sure if the correct (easiest) way
-		// see https://imagej.nih.gov/ij/docs/pdfs/tutorial11.pdf p 10
-		/*System.out.println(pixels.length + " total pixels");
-		System.out.println("pixel before byte conversion " + pixels[1]);
-		int pix = 0xff & pixels[1];
-		pixels[1] = (byte) (pix & 0xff);
-		System.out.println("pixel after byte conversion " + pixels[1]);
-
-		int red = (int)(pixels[1] & 0xff0000)>>16;
-		System.out.println("red part " + red);
-		int green = (int)(pixels[1] & 0x00ff00)>>8;
-		System.out.println("green part " + green);
-		int blue = (int)(pixels[1] & 0x0000ff);
-		System.out.println("blue part " + blue);*/
-
-		// now
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				// pixel under consideration
-				int pixel = imp.getProcessor().getPixel(x, y);
-				int red = (int)(pixel & 0xff0000)>>16;
-				int green = (int)(pixel & 0x00ff00)>>8;
-				int blue = (int)(pixel & 0x0000ff);
-
-				//System.out.println("original pixel values " + green); // works
-
-				if (labeledImg[x][y] != BG_VAL && meanRGBsPerLabel.containsKey(labeledImg[x][y])) {
-					// previously calculated values
-					int redBucketCurrent = meanRGBsPerLabel.get(labeledImg[x][y])[0];
-					int greenBucketCurrent = meanRGBsPerLabel.get(labeledImg[x][y])[1];
-					int blueBucketCurrent = meanRGBsPerLabel.get(labeledImg[x][y])[2];
-
-					// need number of points so far to calculate accurate mean, and can update this value
-					int pointsSeenSoFar = pointsSeenPerLabel.get(labeledImg[x][y]);
-					pointsSeenPerLabel.put(labeledImg[x][y], pointsSeenSoFar + 1);
-
-					// calculation rules follow
-					// se https://math.stackexchange.com/questions/106313/regular-average-calculated-accumulatively
-					int newRedBucket = redBucketCurrent + red;
-					int newGreenBucket = greenBucketCurrent + green;
-					int newBlueBucket = blueBucketCurrent + blue;
-
-					// update
-					meanRGBsPerLabel.put(labeledImg[x][y], new Integer[]{newRedBucket, newGreenBucket, newBlueBucket});
-				} else  {
-					Integer[] newEntry = {red, green, blue};
-					meanRGBsPerLabel.put(labeledImg[x][y], newEntry);
-					pointsSeenPerLabel.put(labeledImg[x][y], 1);
-				}
+		// integer means from the channel sums
+		for (int label = 1; label <= stats.count; label++) {
+			int area = stats.area[label];
+			if (area > 0) {
+				meanRGBsPerLabel.put(label, new Integer[]{(int) (stats.sumRed[label] / area),
+						(int) (stats.sumGreen[label] / area), (int) (stats.sumBlue[label] / area)});
 			}
 		}
 
-		// dividing step to get the means from the buckets
-		for (Map.Entry<Integer, Integer[]> meanSet : meanRGBsPerLabel.entrySet()) {
-			int label = meanSet.getKey();
-			int redMean = (int) meanSet.getValue()[0] / pointsSeenPerLabel.get(label);
-			int greenMean = (int) meanSet.getValue()[1] / pointsSeenPerLabel.get(label);
-			int blueMean = (int) (int) meanSet.getValue()[2] / pointsSeenPerLabel.get(label);
-
-			meanRGBsPerLabel.put(label, new Integer[]{redMean,greenMean,blueMean});
-		}
-
 		return meanRGBsPerLabel;
 	}
 
@@ -443,14 +472,8 @@ public class CoinCounter_ implements PlugInFilter {
 		for (Map.Entry<Integer, Integer[]> meanSet : meanRGBPerLabel.entrySet()) {
 			int label = meanSet.getKey();
 
-			// first classification step (1) on basis of color and particularly the Red channel, or rather,
-			//		the relative distance between red and green
-			//		comparison to blue might also work fine, blue seems to vary less however
-			//		see analysis in run method
-			float distance = (float) meanSet.getValue()[0] / meanSet.getValue()[1]; // > 1 => more red than green
-			boolean looksBronze = false;
-			if (distance > RED_TO_GREEN_CUTOFF) // the higher the value, the less sensitive to more red
-				looksBronze = true;
+			// first classification step (1) on basis of color, see looksBronze
+			boolean looksBronze = looksBronze(meanSet.getValue());
 
 			// the rest of the classification is about diameter
 			//		this part is static/absolute, from tests on the given images
@@ -480,6 +503,35 @@ public class CoinCounter_ implements PlugInFilter {
 		return centValuesPerCoinLabel;
 	}
 
+	private boolean looksBronze(Integer[] meanRGB) {
+		// on basis of color and particularly the Red channel, or rather,
+		//		the relative distance between red and green
+		//		comparison to blue might also work fine, blue seems to vary less however
+		//		see analysis in run method
+		float distance = (float) meanRGB[0] / meanRGB[1]; // > 1 => more red than green
+		return distance > RED_TO_GREEN_CUTOFF; // the higher the value, the less sensitive to more red
+	}
+
+	/**
+	 * @return one row per classified coin: label, diameter in mm, mean RGB, color class and value in cents
+	 */
+	private ResultsTable getCoinTable(Map<Integer, Integer> classifiedCoins, Map<Integer, Integer> widthsPerLabelInMM,
+									  Map<Integer, Integer[]> meanRGBPerLabel) {
+		ResultsTable table = new ResultsTable();
+		for (int label : new TreeSet<>(classifiedCoins.keySet())) {
+			Integer[] meanRGB = meanRGBPerLabel.get(label);
+			table.incrementCounter();
+			table.addValue("label", label);
+			table.addValue("diameterMM", widthsPerLabelInMM.get(label));
+			table.addValue("meanRed", meanRGB[0]);
+			table.addValue("meanGreen", meanRGB[1]);
+			table.addValue("meanBlue", meanRGB[2]);
+			table.addValue("class", looksBronze(meanRGB) ? "bronze" : "gold");
+			table.addValue("valueCents", classifiedCoins.get(label));
+		}
+		return table;
+	}
+
 	private int sumCoins(Map<Integer, Integer> classifiedCoins) {
 		int sum = 0;
 		for (Map.Entry<Integer, Integer> valueSet : classifiedCoins.entrySet()) {
@@ -515,12 +567,26 @@ public class CoinCounter_ implements PlugInFilter {
 		Part 1
 		 */
 
-		byte[] pixels = (byte[])imp.getProcessor().getPixels();
 		int width = ip.getWidth();
 		int height = ip.getHeight();
+		boolean hough = segmentation.equals(SEGMENTATIONS[1]);
+
+		// the Hough circle path needs the gradients of the gray image, before it is overwritten below
+		FloatImage gradX = null;
+		FloatImage gradY = null;
+		if (hough) {
+			gradX = new FloatImage(width, height);
+			gradY = new FloatImage(width, height);
+			FloatImage grayImg = ImageJUtility.toFloatImage(GrayImage8.wrap(imp.getProcessor()));
+			FloatImage smoothedImg = new FloatImage(width, height);
+			ConvolutionFilter.convolveFloat(grayImg, smoothedImg, ConvolutionFilter.getMeanMask(HOUGH_SMOOTHING_RADIUS),
+					HOUGH_SMOOTHING_RADIUS, true);
+			Sobel_.getGradients(smoothedImg, gradX, gradY, true);
+		}
 
-
-		int[][] inDataArrInt = ImageJUtility.convertFrom1DByteArr(pixels, width, height);
+		// all of Part 1 streams over the gray image once: both thresholds and the brightness increase are folded into
+		// one lookup table from gray value to code bits, the gray buffer is overwritten with the codes
+		byte[] codes = (byte[])imp.getProcessor().getPixels();
 
 		int fg_val = 255;
 		int bg_val = 0;
@@ -528,99 +594,84 @@ public class CoinCounter_ implements PlugInFilter {
 		int tmin = 0;
 		int tmax = 32; // to capture reference marker, i.e. darkes part of the image
 
+		int tminCoins = 70;
+		int tmaxCoins = 180; // could be done dynamically?
+
 		int[] binaryThresholdTF = ImageTransformationFilter.getBinaryThresholdTF(fg_val, tmin, tmax, fg_val, bg_val);
-		int[][] transformedImage = ImageTransformationFilter.getTransformedImage(inDataArrInt, width, height, binaryThresholdTF);
+		int[] binaryThresholdTFCoins = ImageTransformationFilter.getBinaryThresholdTF(fg_val, tminCoins, tmaxCoins, fg_val, bg_val);
 
-		// Uncomment to show intermediate processing step
-		//ImageJUtility.showNewImage(transformedImage, width, height, "1.1 Binary Segmentation First Pass with Thresholding");
+		byte[] codeTF = new byte[256];
+		for (int gray = 0; gray < 256; gray++) {
+			int code = 0;
+			if (binaryThresholdTF[gray] == fg_val) {
+				code |= MARKER_CANDIDATE;
+			}
+			// the coins are thresholded after increasing the brightness
+			if (binaryThresholdTFCoins[Math.min(255, gray + BRIGHTNESS_INCREASE)] == fg_val) {
+				code |= COIN_CANDIDATE;
+			}
+			codeTF[gray] = (byte) code;
+		}
 
 		// Idea for 1.1:
-		// At the above show step there are false positives (smaller! coins) and no full circle for the reference.
+		// Thresholding alone gives false positives (smaller! coins) and no full circle for the reference.
 		// So: idea to use region growing, seed point from largest area (so find that largest area, throw out the rest)
 		// I define the largest area as the white space with the longest vertical line, the seed point is then any pt on this line
 
 		// find longest connected vertical line to: longest will later be used as well (1.3)
-		int xStartOfLongest, yStartOfLongest, longest, current;
-		longest = 0;
-		current = 0;
-		xStartOfLongest = -1;
-		yStartOfLongest = -1;
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				if (transformedImage[x][y] >= 255) {
-					if (current > longest) {
-						// remember an x and y on the longest run
-						xStartOfLongest = x;
-						yStartOfLongest = y;
-						longest = current;
-					}
-					current += 1;
-				} else {
-					current = 0;
-				}
-
-				// this loop over the image pixels (transformed image so far) will also be used to increase brightness
-				// i.e. the pixel value for the grayscale image by a scaling factor - needed later for coin segmentation
-				inDataArrInt[x][y] = Math.min(255, inDataArrInt[x][y] + BRIGHTNESS_INCREASE);
+		VerticalRunFinder runFinder = new VerticalRunFinder(width, height);
+		for (int y = 0; y < height; y++) {
+			int rowIdx = y * width;
+			for (int x = 0; x < width; x++) {
+				byte code = codeTF[codes[rowIdx + x] & 0xff];
+				codes[rowIdx + x] = code;
+				runFinder.add(x, y, (code & MARKER_CANDIDATE) != 0);
 			}
 		}
 
-		if (xStartOfLongest == -1) {
-			IJ.showMessage("Error",
-							"A region growing seed point for the black reference area could not be found. \n");
+		int[] longestRun = runFinder.getLongest();
+		int xStartOfLongest = longestRun[0];
+		int yStartOfLongest = longestRun[1];
+		int longest = longestRun[2];
 
+		if (xStartOfLongest == -1) {
+			// without the marker there is no scale, nothing after this point would be meaningful
+			String message = "A region growing seed point for the black reference area could not be found.";
+			if (!ImageJUtility.isInteractive()) {
+				// batch runs report the image as failed and go on with the next one
+				throw new IllegalStateException(message);
+			}
+			IJ.showMessage("Error", message + " \n");
+			return;
 		}
 
-		System.out.println("(Info:) Seed point for 1.1 reference region growing: " + xStartOfLongest + " " + yStartOfLongest);
-
-		// region growing
-		Point seedPoint = new Point(xStartOfLongest, yStartOfLongest);
-
-		List<Point> seedPoints = new ArrayList<>();
-		seedPoints.add(seedPoint);
-
-		// here region growing is used to fill out only the reference marker segment containing the seed point (on thresholded image)
-		int[][] segmentedImg = regionGrow(transformedImage, 255, 2, (256 * 0.2) / 2.0, seedPoints);
-
-		ImageJUtility.showNewImage(segmentedImg, width, height, "1.1 Binary Segmentation with Region Growing Reference Marker on Thresholded Image");
-
-		// Idea for 1.2
-		// use different thresholds to segment the coins incl the reference marker, region grow globally
-		// then post process to reset the marker since we have already located this -- if even necessary, based on new thresholds
-
-		// contrast and brightness increases already done in first steps, on inDataArrInt:
-		// Uncomment to show intermediate processing step
-		//ImageJUtility.showNewImage(inDataArrInt, width, height, "Brightness and Contrast Increase on inDataArrInt from first steps");
-
-		int tminCoins = 70;
-		int tmaxCoins = 180; // could be done dynamically?
+		ImageJUtility.log("(Info:) Seed point for 1.1 reference region growing: " + xStartOfLongest + " " + yStartOfLongest);
 
-		int[] binaryThresholdTFCoins = ImageTransformationFilter.getBinaryThresholdTF(fg_val, tminCoins, tmaxCoins, fg_val, bg_val);
-		int[][] transformedImageCoins = ImageTransformationFilter.getTransformedImage(inDataArrInt, width, height, binaryThresholdTFCoins);
+		byte[] coinMask = null;
+		if (!hough) {
+			// here region growing is used to fill out only the reference marker segment containing the seed point (on thresholded image)
+			growMarker(codes, width, height, xStartOfLongest, yStartOfLongest, 2);
 
-		// Uncomment to show intermediate processing step
-		//ImageJUtility.showNewImage(transformedImageCoins, width, height, "1.2 Binary Segmentation for the Coins: First Pass with Thresholding");
-
-		/*
-		// region growing test
-		List<Point> seedPointsCoins;
-		int[][] segmentedImgCoins = transformedImageCoins;
+			ImageJUtility.showNewImage(getCodeMask(codes, MARKER), width, height, "1.1 Binary Segmentation with Region Growing Reference Marker on Thresholded Image");
 
-		seedPointsCoins = getSeedPointsFromBinarySegmentation(segmentedImgCoins, fg_val);
-		segmentedImgCoins = regionGrow(inDataArrInt, 80, 2,  (256 * 0.2) / 2.0, seedPointsCoins);
-		// closing could be helpful for this binary thresholding step, but seems to come in part 2
-		*/
+			// Idea for 1.2
+			// use different thresholds to segment the coins incl the reference marker
+			// then post process to reset the marker since we have already located this -- if even necessary, based on new thresholds
 
-		// subtract reference marker
-		int[][] segmentedImgCoinsSubtracted = subtract(transformedImageCoins, segmentedImg, fg_val);
+			// subtract reference marker, the code buffer becomes the coin mask
+			for (int i = 0; i < codes.length; i++) {
+				codes[i] = (codes[i] & (COIN_CANDIDATE | MARKER)) == COIN_CANDIDATE ? (byte) fg_val : (byte) bg_val;
+			}
+			coinMask = codes;
 
-		ImageJUtility.showNewImage(segmentedImgCoinsSubtracted, width, height, "1.2 Binary Segmentation with Region Growing, Reference Subtracted");
+			ImageJUtility.showNewImage(coinMask, width, height, "1.2 Binary Segmentation with Region Growing, Reference Subtracted");
+		}
 
 		// Idea for 1.3
 		// the marker is 30 mm wide: this length was actually measured in 1.1 (longest) and can now be put to good use
 		// if the whole length in pixels represents 30 mm, we know what the equivalence between 1 mm and pixels is
 		double referenceScalingFactor = longest / 30.0; // 1 mm in pixels is equivalent to this value
-		System.out.println("referenceScalingFactor (ANSWER to 1.3): " + referenceScalingFactor);
+		ImageJUtility.log("referenceScalingFactor (ANSWER to 1.3): " + referenceScalingFactor);
 		// i.e. a length in pixels / referenceScalingFactor is its length in mm
 
 		/*
@@ -638,15 +689,39 @@ public class CoinCounter_ implements PlugInFilter {
 		// output count
 		// to get sizes, go through label map and count widths, created dictionary structure of label to width
 
-		int[][] labeledImg = regionLabel(segmentedImgCoinsSubtracted);
-		int regionCount = countRegions(labeledImg);
+		// alternative for touching coins: circles from the Hough transform instead of regions, the diameter is then
+		// measured directly and not derived from the area. The marker is the circle around the longest vertical line.
+		Map<Integer, Integer> widthsPerLabel = new HashMap<>();
+		int[] labeledImg;
+		if (hough) {
+			HoughCircles circles = detectCoins(gradX, gradY, referenceScalingFactor);
+			ImageJUtility.showNewImage(getAccumulatorImage(circles.accumulator), "2.1 Hough Circle Accumulator");
+			labeledImg = getCircleLabels(circles, width, height, xStartOfLongest, yStartOfLongest - longest / 2.0,
+					longest / 2.0, widthsPerLabel);
+		} else {
+			labeledImg = regionLabel(coinMask, width, height);
+			if (segmentation.equals(SEGMENTATIONS[2])) {
+				// touching coins form one region, split it along the narrow contact
+				labeledImg = splitTouchingCoins(labeledImg, width, height, referenceScalingFactor);
+			}
+		}
 
-		System.out.println(regionCount + " labels applied (ANSWER 1 to Task 2.3)");
+		// colors for Part 3 come from the original image, contrast reset first
+		enh.stretchHistogram(impOriginal, -25); // performance better with this step (see preprocessing part)
+
+		// area, diameter and mean color of all regions in one pass
+		RegionStatistics stats = RegionStatistics.compute(labeledImg, width, height,
+				(int[]) impOriginal.getProcessor().getPixels(), true);
+		int regionCount = countRegions(stats);
+
+		ImageJUtility.log(regionCount + " labels applied (ANSWER 1 to Task 2.3)");
 
 		// closing needed for accurate results
-		Map<Integer, Integer> widthsPerLabel = calculateWidths(labeledImg);
+		if (!hough) {
+			widthsPerLabel = calculateWidths(stats);
+		}
 
-		System.out.println(widthsPerLabel + " diameters (in pixels) per label (ANSWER 2 to Task 2.3)");
+		ImageJUtility.log(widthsPerLabel + " diameters (in pixels) per label (ANSWER 2 to Task 2.3)");
 
 		show2DGrayscaleWithGlasbey(labeledImg, width, height);
 
@@ -660,17 +735,10 @@ public class CoinCounter_ implements PlugInFilter {
 		// but classify according to RGB ranges (cubes? 3D color space?) first (separating two ways, gold and bronze) (1)
 
 		// (1)
-		enh.stretchHistogram(impOriginal, -25); // performance better with this step (see preprocessing part)
-		Map<Integer, Integer[]> meanRGBPerLabel = getMeanRGBs(labeledImg, impOriginal);
+		Map<Integer, Integer[]> meanRGBPerLabel = getMeanRGBs(stats);
 
 		Map<Integer, Integer> widthsPerLabelInMM = convertWidths(widthsPerLabel, referenceScalingFactor);
 
-		// to check
-		/*for (Map.Entry<Integer, Integer[]> meanSet : meanRGBPerLabel.entrySet()) {
-			int label = meanSet.getKey();
-			System.out.println(label + " - " + Arrays.toString(meanSet.getValue()) + " - " + widthsPerLabelInMM.get(label));
-		}*/
-
 		// for explanation of the approach taken here
 		/* outputs at this stage without contrast resetting
 		* {0=1, 1=288, 2=314, 3=212, 4=212, 5=287, 6=246, 7=202, 8=320, 9=274, 10=277} diameters (in pixels) per label (ANSWER 2 to Task 2.3)
@@ -708,18 +776,21 @@ public class CoinCounter_ implements PlugInFilter {
 
 		Map<Integer, Integer> classifiedCoins = classifyCoins(widthsPerLabelInMM, meanRGBPerLabel); // in cents
 
-		// to check
-		/*for (Map.Entry<Integer, Integer> valueSet : classifiedCoins.entrySet()) {
-			int label = valueSet.getKey();
-			System.out.println(label + " - " + valueSet.getValue());
-		}*/
+		// per coin: label, diameter, mean color and value in the "Coins" table below
 
 		int finalSum = sumCoins(classifiedCoins);
 
 		int euros = finalSum / 100;
 		int cents = finalSum % 100;
 
-		System.out.printf("Final sum is %d euro%s and %d cent%s (%d,%d EURO) (ANSWER to Task 3) %n", euros, euros > 1 ? "s" : "", cents, cents > 1 ? "s" : "", euros, cents);
+		ImageJUtility.log(String.format("Final sum is %d euro%s and %d cent%s (%d,%d EURO) (ANSWER to Task 3)", euros, euros > 1 ? "s" : "", cents, cents > 1 ? "s" : "", euros, cents));
+
+		// numeric results for headless batch runs (no-op when running interactively)
+		ImageJUtility.putResult("referenceScalingFactor", referenceScalingFactor);
+		ImageJUtility.putResult("regionCount", regionCount);
+		ImageJUtility.putResult("coinCount", classifiedCoins.size());
+		ImageJUtility.putResult("sumCents", finalSum);
+		ImageJUtility.showTable("Coins", getCoinTable(classifiedCoins, widthsPerLabelInMM, meanRGBPerLabel));
 
 	} //run
 
@@ -0,0 +1,271 @@
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Two-pass union-find connected-component labelling of a flat, row-major binary image. The first pass links every
+ * foreground pixel to its already visited neighbours, the second pass resolves the sets to consecutive labels and
+ * collects size, first pixel and edge contact of every component on the way. There is no limit on the number of
+ * labels. The labels are resolved in place in the parent array, so one int per pixel is all the memory needed.
+ * <p>
+ * The parallel variant runs the first pass on horizontal strips, each strip only links pixels of its own rows, and
+ * merges the strips along their border rows afterwards. A set is always represented by its smallest pixel index, so
+ * the labels do not depend on the strip layout.
+ */
+public class ConnectedComponents {
+
+    // strips per thread for the parallel first pass
+    private static final int STRIPS_PER_THREAD = 4;
+
+    public final int width;
+    public final int height;
+
+    /**
+     * label per pixel (row-major), 0 for background, components are numbered 1..count in row-major order of their
+     * first pixel
+     */
+    public final int[] labels;
+    public final int count;
+
+    /**
+     * per label (index 0 unused): number of pixels
+     */
+    public final int[] sizes;
+
+    /**
+     * per label: smallest column-major index x * height + y, i.e. the first pixel found when scanning an [x][y]
+     * image column by column
+     */
+    public final int[] firstColumnMajor;
+
+    /**
+     * per label: true if a border pixel of the component has an out of image neighbour on the line of an image
+     * border row or column, see hasEdgeNeighbor
+     */
+    public final boolean[] touchesEdge;
+
+    private ConnectedComponents(int width, int height, int[] labels, int count, int[] sizes, int[] firstColumnMajor,
+                                boolean[] touchesEdge) {
+        this.width = width;
+        this.height = height;
+        this.labels = labels;
+        this.count = count;
+        this.sizes = sizes;
+        this.firstColumnMajor = firstColumnMajor;
+        this.touchesEdge = touchesEdge;
+    }
+
+    /**
+     * @param pixels         binary image, row-major
+     * @param width          The width of the image.
+     * @param height         The height of the image.
+     * @param fgVal          pixels >= fgVal are foreground
+     * @param eightConnected true for 8-connectivity, false for 4-connectivity
+     * @param parallel       true to run the first pass on strips in ParallelUtility's pool
+     * @return labels and per component statistics
+     */
+    public static ConnectedComponents label(int[] pixels, int width, int height, int fgVal, boolean eightConnected,
+                                            boolean parallel) {
+        return label(idx -> pixels[idx] >= fgVal, width, height, eightConnected, parallel);
+    }
+
+    /**
+     * @param mask           binary mask, row-major, non-zero is foreground
+     * @param width          The width of the image.
+     * @param height         The height of the image.
+     * @param eightConnected true for 8-connectivity, false for 4-connectivity
+     * @param parallel       true to run the first pass on strips in ParallelUtility's pool
+     * @return labels and per component statistics
+     */
+    public static ConnectedComponents label(byte[] mask, int width, int height, boolean eightConnected,
+                                            boolean parallel) {
+        return label(idx -> mask[idx] != 0, width, height, eightConnected, parallel);
+    }
+
+    private static ConnectedComponents label(IntPredicate foreground, int width, int height, boolean eightConnected,
+                                             boolean parallel) {
+        // parent index + 1 per pixel, 0 for background
+        int[] parent = new int[width * height];
+
+        int strips = parallel ? Math.min(height, ParallelUtility.getThreadCount() * STRIPS_PER_THREAD) : 1;
+        ParallelUtility.forEachBand(strips, parallel, (from, to) -> {
+            for (int strip = from; strip < to; strip++) {
+                linkRows(foreground, parent, width, getStripStart(strip, strips, height),
+                        getStripStart(strip + 1, strips, height), eightConnected);
+            }
+        });
+        for (int strip = 1; strip < strips; strip++) {
+            linkToRowAbove(parent, width, getStripStart(strip, strips, height), eightConnected);
+        }
+
+        return resolve(parent, width, height);
+    }
+
+    private static int getStripStart(int strip, int strips, int height) {
+        return (int) ((long) height * strip / strips);
+    }
+
+    /**
+     * first pass on rows [fromY;toY): foreground pixels are linked to their foreground neighbours to the left and in
+     * the row above (if that row belongs to the strip)
+     */
+    private static void linkRows(IntPredicate foreground, int[] parent, int width, int fromY, int toY,
+                                 boolean eightConnected) {
+        for (int y = fromY; y < toY; y++) {
+            for (int x = 0; x < width; x++) {
+                int idx = y * width + x;
+                if (!foreground.test(idx)) {
+                    parent[idx] = 0;
+                    continue;
+                }
+                parent[idx] = idx + 1;
+                if (x > 0 && parent[idx - 1] != 0) {
+                    union(parent, idx, idx - 1);
+                }
+            }
+            if (y > fromY) {
+                linkToRowAbove(parent, width, y, eightConnected);
+            }
+        }
+    }
+
+    /**
+     * links the foreground pixels of row y to their foreground neighbours in row y - 1
+     */
+    private static void linkToRowAbove(int[] parent, int width, int y, boolean eightConnected) {
+        int rowIdx = y * width;
+        int aboveIdx = rowIdx - width;
+        for (int x = 0; x < width; x++) {
+            if (parent[rowIdx + x] == 0) {
+                continue;
+            }
+            if (parent[aboveIdx + x] != 0) {
+                union(parent, rowIdx + x, aboveIdx + x);
+            }
+            if (eightConnected) {
+                if (x > 0 && parent[aboveIdx + x - 1] != 0) {
+                    union(parent, rowIdx + x, aboveIdx + x - 1);
+                }
+                if (x < width - 1 && parent[aboveIdx + x + 1] != 0) {
+                    union(parent, rowIdx + x, aboveIdx + x + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return root of the set of idx, with path halving
+     */
+    private static int find(int[] parent, int idx) {
+        while (parent[idx] != idx + 1) {
+            parent[idx] = parent[parent[idx] - 1];
+            idx = parent[idx] - 1;
+        }
+        return idx;
+    }
+
+    /**
+     * merges two sets, the smaller root stays root. Every parent is then smaller than its child and every root is
+     * the smallest index of its set.
+     */
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        if (rootA < rootB) {
+            parent[rootB] = rootA + 1;
+        } else if (rootB < rootA) {
+            parent[rootA] = rootB + 1;
+        }
+    }
+
+    /**
+     * second pass: consecutive labels and statistics, in place. Parents are smaller than their children, so when a
+     * pixel is reached its parent already holds the label of the set, and a root is reached before the rest of
+     * its set.
+     */
+    private static ConnectedComponents resolve(int[] parent, int width, int height) {
+        int[] labels = parent;
+        int[] sizes = new int[64];
+        int[] firstColumnMajor = new int[64];
+        boolean[] touchesEdge = new boolean[64];
+        int count = 0;
+
+        for (int y = 0; y < height; y++) {
+            boolean borderRow = y == 0 || y == height - 1;
+            for (int x = 0; x < width; x++) {
+                int idx = y * width + x;
+                if (parent[idx] == 0) {
+                    continue;
+                }
+
+                int label;
+                if (parent[idx] == idx + 1) {
+                    label = ++count;
+                    if (label == sizes.length) {
+                        sizes = Arrays.copyOf(sizes, 2 * label);
+                        firstColumnMajor = Arrays.copyOf(firstColumnMajor, 2 * label);
+                        touchesEdge = Arrays.copyOf(touchesEdge, 2 * label);
+                    }
+                    firstColumnMajor[label] = Integer.MAX_VALUE;
+                } else {
+                    label = labels[parent[idx] - 1];
+                }
+                labels[idx] = label;
+
+                sizes[label]++;
+                firstColumnMajor[label] = Math.min(firstColumnMajor[label], x * height + y);
+                if ((borderRow || x == 0 || x == width - 1) && !touchesEdge[label]) {
+                    touchesEdge[label] = hasEdgeNeighbor(x, y, width, height);
+                }
+            }
+        }
+
+        return new ConnectedComponents(width, height, labels, count, Arrays.copyOf(sizes, count + 1),
+                Arrays.copyOf(firstColumnMajor, count + 1), Arrays.copyOf(touchesEdge, count + 1));
+    }
+
+    /**
+     * edge criterion of the former CoinCounter_ region labelling: an out of image 8-neighbour (nbX, nbY) counts if
+     * nbX == 0, nbX == width - 1, nbY == 0 or nbY == height - 1. In effect only border pixels within two pixels of
+     * an image corner set the flag.
+     */
+    private static boolean hasEdgeNeighbor(int x, int y, int width, int height) {
+        for (int nbX = x - 1; nbX <= x + 1; nbX++) {
+            for (int nbY = y - 1; nbY <= y + 1; nbY++) {
+                boolean outside = nbX < 0 || nbX >= width || nbY < 0 || nbY >= height;
+                if (outside && (nbX == 0 || nbX == width - 1 || nbY == 0 || nbY == height - 1)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * renumbers the label image in place, sizes, firstColumnMajor and touchesEdge keep the old numbering
+     *
+     * @param keep per label (index 0 unused): true to keep the component
+     * @return the label image (row-major) with the kept components numbered 1..n in column-major order of their
+     * first pixel, everything else 0
+     */
+    public int[] relabel(boolean[] keep) {
+        Integer[] kept = new Integer[count];
+        int keptCount = 0;
+        for (int label = 1; label <= count; label++) {
+            if (keep[label]) {
+                kept[keptCount++] = label;
+            }
+        }
+        Arrays.sort(kept, 0, keptCount, (a, b) -> Integer.compare(firstColumnMajor[a], firstColumnMajor[b]));
+
+        int[] newLabels = new int[count + 1];
+        for (int i = 0; i < keptCount; i++) {
+            newLabels[kept[i]] = i + 1;
+        }
+
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = newLabels[labels[i]];
+        }
+        return labels;
+    }
+
+}
@@ -1,8 +1,14 @@
+import java.util.Arrays;
+
 /**
  * Utility class that supports various convolution filters
  */
 public class ConvolutionFilter {
 
+    // FFT tile size (power of two) and cost of one butterfly stage per element relative to a spatial multiply-add
+    public static final int FFT_TILE_SIZE = 256;
+    private static final double FFT_COST_FACTOR = 4.0;
+
     /**
      * convolution of input image with kernel, normalization to kernel sum 1.0 only use for low-pass filters
      *
@@ -14,13 +20,90 @@ public class ConvolutionFilter {
      * @return The image with the applied kernel.
      */
     public static double[][] convolveDoubleNorm(double[][] inputImg, int width, int height, double[][] kernel, int radius) {
-        double[][] returnImg = new double[width][height];
+        DoubleImage flatImg = ImageJUtility.toDoubleImage(inputImg, width, height);
+        DoubleImage returnImg = convolveDoubleNorm(flatImg, kernel, radius);
+        return ImageJUtility.toDoubleArr2D(returnImg);
+    }
 
-        //TODO: implementation required
+    /**
+     * normalized convolution of flat input image with kernel: every result is divided by the kernel weight that
+     * actually falls inside the image, so low-pass filters do not darken towards the edges
+     *
+     * @param inputImg The input image on which the kernel should be applied.
+     * @param kernel   The kernel that should be applied on the image, format [x][y].
+     * @param radius   The radius of the kernel.
+     * @return The image with the applied kernel.
+     */
+    public static DoubleImage convolveDoubleNorm(DoubleImage inputImg, double[][] kernel, int radius) {
+        DoubleImage returnImg = new DoubleImage(inputImg.width, inputImg.height);
+        convolveDoubleNorm(inputImg, returnImg, kernel, radius, false);
+        return returnImg;
+    }
 
+    /**
+     * multi-threaded convolveDoubleNorm, the result is identical to the serial one
+     *
+     * @param inputImg The input image on which the kernel should be applied.
+     * @param kernel   The kernel that should be applied on the image, format [x][y].
+     * @param radius   The radius of the kernel.
+     * @return The image with the applied kernel.
+     */
+    public static DoubleImage convolveDoubleNormParallel(DoubleImage inputImg, double[][] kernel, int radius) {
+        DoubleImage returnImg = new DoubleImage(inputImg.width, inputImg.height);
+        convolveDoubleNorm(inputImg, returnImg, kernel, radius, true);
         return returnImg;
     }
 
+    /**
+     * normalized convolution into a preallocated output image
+     *
+     * @param inputImg  The input image on which the kernel should be applied.
+     * @param returnImg The output image of the same size, must not be the input image.
+     * @param kernel    The kernel that should be applied on the image, format [x][y].
+     * @param radius    The radius of the kernel.
+     * @param parallel  true to split the work into row/column bands on ParallelUtility's pool
+     */
+    public static void convolveDoubleNorm(DoubleImage inputImg, DoubleImage returnImg, double[][] kernel, int radius,
+                                          boolean parallel) {
+        int width = inputImg.width;
+        int height = inputImg.height;
+        double[] out = returnImg.pixels;
+        int outStride = returnImg.stride;
+
+        // zero padded convolution first (uses the fast paths), then divide by the in-image kernel weight
+        convolveDouble(inputImg, returnImg, kernel, radius, parallel);
+
+        double[][] kernelSAT = getSummedAreaTable(kernel);
+        int size = 2 * radius + 1;
+        double kernelSum = kernelSAT[size][size];
+
+        int interiorFromX = Math.min(radius, width);
+        int interiorToX = Math.max(interiorFromX, width - radius);
+        int interiorFromY = Math.min(radius, height);
+        int interiorToY = Math.max(interiorFromY, height - radius);
+
+        ParallelUtility.forEachBand(height, parallel, (fromRow, toRow) -> {
+            for (int y = fromRow; y < toRow; y++) {
+                int outIdx = y * outStride;
+                boolean borderRow = y < interiorFromY || y >= interiorToY;
+                int fromY = Math.max(-radius, -y) + radius;
+                int toY = Math.min(radius, height - 1 - y) + radius + 1;
+                for (int x = 0; x < width; x++) {
+                    double weight;
+                    if (borderRow || x < interiorFromX || x >= interiorToX) {
+                        // border band: weight of the clipped kernel rectangle in O(1)
+                        int fromX = Math.max(-radius, -x) + radius;
+                        int toX = Math.min(radius, width - 1 - x) + radius + 1;
+                        weight = kernelSAT[toX][toY] - kernelSAT[fromX][toY] - kernelSAT[toX][fromY] + kernelSAT[fromX][fromY];
+                    } else {
+                        weight = kernelSum;
+                    }
+                    out[outIdx + x] = weight != 0.0 ? out[outIdx + x] / weight : 0.0;
+                }
+            }
+        });
+    }
+
     /**
      * convolution of input image with kernel
      *
@@ -32,30 +115,748 @@ public class ConvolutionFilter {
      * @return The image with the applied kernel.
      */
     public static double[][] convolveDouble(double[][] inputImg, int width, int height, double[][] kernel, int radius) {
-        double[][] returnImg = new double[width][height];
+        DoubleImage flatImg = ImageJUtility.toDoubleImage(inputImg, width, height);
+        DoubleImage returnImg = convolveDouble(flatImg, kernel, radius);
+        return ImageJUtility.toDoubleArr2D(returnImg);
+    }
+
+    /**
+     * convolution of flat input image with kernel, pixels outside the image contribute 0.0
+     *
+     * @param inputImg The input image on which the kernel should be applied.
+     * @param kernel   The kernel that should be applied on the image, format [x][y].
+     * @param radius   The radius of the kernel.
+     * @return The image with the applied kernel.
+     */
+    public static DoubleImage convolveDouble(DoubleImage inputImg, double[][] kernel, int radius) {
+        DoubleImage returnImg = new DoubleImage(inputImg.width, inputImg.height);
+        convolveDouble(inputImg, returnImg, kernel, radius, false);
+        return returnImg;
+    }
 
-        // implemented WITHOUT correction factor for edges!
+    /**
+     * multi-threaded convolveDouble on row/column bands, the result is identical to the serial one
+     *
+     * @param inputImg The input image on which the kernel should be applied.
+     * @param kernel   The kernel that should be applied on the image, format [x][y].
+     * @param radius   The radius of the kernel.
+     * @return The image with the applied kernel.
+     */
+    public static DoubleImage convolveDoubleParallel(DoubleImage inputImg, double[][] kernel, int radius) {
+        DoubleImage returnImg = new DoubleImage(inputImg.width, inputImg.height);
+        convolveDouble(inputImg, returnImg, kernel, radius, true);
+        return returnImg;
+    }
 
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                double sum = 0.0;
-                for (int xOffset = -radius; xOffset <= radius; xOffset++) {
-                    for (int yOffset = -radius; yOffset <= radius; yOffset++) {
-                        int nbX = x + xOffset;
-                        int nbY = y + yOffset;
+    /**
+     * convolution into a preallocated output image, e.g. a scratch buffer reused for every stack slice
+     *
+     * @param inputImg  The input image on which the kernel should be applied.
+     * @param returnImg The output image of the same size, must not be the input image.
+     * @param kernel    The kernel that should be applied on the image, format [x][y].
+     * @param radius    The radius of the kernel.
+     */
+    public static void convolveDouble(DoubleImage inputImg, DoubleImage returnImg, double[][] kernel, int radius) {
+        convolveDouble(inputImg, returnImg, kernel, radius, false);
+    }
 
-                        if ((nbX >= 0) && nbX < width && nbY >= 0 && nbY < height) {
-                            sum += inputImg[nbX][nbY] * kernel[xOffset + radius][yOffset + radius];
+    /**
+     * convolution into a preallocated output image
+     *
+     * @param inputImg  The input image on which the kernel should be applied.
+     * @param returnImg The output image of the same size, must not be the input image.
+     * @param kernel    The kernel that should be applied on the image, format [x][y].
+     * @param radius    The radius of the kernel.
+     * @param parallel  true to split the work into row/column bands on ParallelUtility's pool
+     */
+    public static void convolveDouble(DoubleImage inputImg, DoubleImage returnImg, double[][] kernel, int radius,
+                                      boolean parallel) {
+        // fast paths: constant (mean) kernels in O(1), rank-1 kernels in O(r) per pixel, large kernels via FFT
+        if (isConstantKernel(kernel)) {
+            convolveBox(inputImg, returnImg, radius, kernel[0][0], parallel);
+            return;
+        }
+
+        double[][] factors = getSeparableFactors(kernel);
+        int size = 2 * radius + 1;
+        double spatialCost = factors != null ? 2.0 * size : (double) size * size;
+        if (getFFTCostPerPixel(inputImg.width, inputImg.height, radius) < spatialCost) {
+            convolveFFT(inputImg, returnImg, kernel, radius, parallel);
+        } else if (factors != null) {
+            convolveSeparable(inputImg, returnImg, factors[0], factors[1], radius, parallel);
+        } else {
+            convolveDirect(inputImg, returnImg, kernel, radius, parallel);
+        }
+    }
+
+    /**
+     * estimated cost of convolveFFT per output pixel, in units of one spatial multiply-add. Used as crossover to
+     * the spatial paths; with the default tile size FFT wins from about 15x15 general kernels on.
+     *
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     * @param radius The radius of the kernel.
+     * @return estimated cost per pixel
+     */
+    public static double getFFTCostPerPixel(int width, int height, int radius) {
+        int[] fftSize = getFFTTileSize(width, height, radius);
+        int tileX = fftSize[0] - 2 * radius;
+        int tileY = fftSize[1] - 2 * radius;
+        int tilesX = (width + tileX - 1) / tileX;
+        int tilesY = (height + tileY - 1) / tileY;
+
+        // forward + inverse complex transform per tile, log2(n) butterfly stages each
+        double transformLog = Math.log(fftSize[0] * (double) fftSize[1]) / Math.log(2.0);
+        double costPerTile = FFT_COST_FACTOR * 2.0 * fftSize[0] * (double) fftSize[1] * transformLog;
+        return costPerTile * tilesX * tilesY / ((double) width * height);
+    }
+
+    /**
+     * @return {sizeX, sizeY} power of two FFT size per tile, each tile yields (size - 2 * radius) output pixels
+     */
+    private static int[] getFFTTileSize(int width, int height, int radius) {
+        int minSize = FFT.nextPowerOfTwo(Math.max(FFT_TILE_SIZE, 4 * radius + 1));
+        int sizeX = Math.min(minSize, FFT.nextPowerOfTwo(width + 2 * radius));
+        int sizeY = Math.min(minSize, FFT.nextPowerOfTwo(height + 2 * radius));
+        return new int[]{sizeX, sizeY};
+    }
+
+    /**
+     * FFT convolution using overlap-save tiling: every output tile reads its input tile plus a radius wide apron
+     * (zero outside the image), is transformed, multiplied with the kernel spectrum and transformed back. Only the
+     * alias free center is kept, so each output pixel is written by exactly one tile and tiles can run in parallel
+     * with a deterministic result. Pixels outside the image contribute 0.0 as in convolveDouble.
+     *
+     * @param inputImg  The input image on which the kernel should be applied.
+     * @param returnImg The output image of the same size, must not be the input image.
+     * @param kernel    The kernel that should be applied on the image, format [x][y].
+     * @param radius    The radius of the kernel.
+     * @param parallel  true to process tile rows in parallel
+     */
+    public static void convolveFFT(DoubleImage inputImg, DoubleImage returnImg, double[][] kernel, int radius,
+                                   boolean parallel) {
+        int width = inputImg.width;
+        int height = inputImg.height;
+        double[] in = inputImg.pixels;
+        double[] out = returnImg.pixels;
+
+        int[] fftSize = getFFTTileSize(width, height, radius);
+        int sizeX = fftSize[0];
+        int sizeY = fftSize[1];
+        int tileX = sizeX - 2 * radius;
+        int tileY = sizeY - 2 * radius;
+        int tilesX = (width + tileX - 1) / tileX;
+        int tilesY = (height + tileY - 1) / tileY;
+
+        // kernel spectrum, kernel[d + radius] placed at index d mod size. The kernel is correlated with the image
+        // (as in convolveDirect), which is a multiplication with the conjugate spectrum.
+        double[] kernelRe = new double[sizeX * sizeY];
+        double[] kernelIm = new double[sizeX * sizeY];
+        for (int xOffset = -radius; xOffset <= radius; xOffset++) {
+            for (int yOffset = -radius; yOffset <= radius; yOffset++) {
+                int idx = ((yOffset + sizeY) % sizeY) * sizeX + (xOffset + sizeX) % sizeX;
+                kernelRe[idx] = kernel[xOffset + radius][yOffset + radius];
+            }
+        }
+        FFT.transform2D(kernelRe, kernelIm, sizeX, sizeY, false);
+
+        ParallelUtility.forEachBand(tilesY, parallel, (fromTile, toTile) -> {
+            double[] re = new double[sizeX * sizeY];
+            double[] im = new double[sizeX * sizeY];
+
+            for (int tileIdxY = fromTile; tileIdxY < toTile; tileIdxY++) {
+                for (int tileIdxX = 0; tileIdxX < tilesX; tileIdxX++) {
+                    int originX = tileIdxX * tileX;
+                    int originY = tileIdxY * tileY;
+
+                    // load tile with apron, zero outside the image
+                    Arrays.fill(re, 0.0);
+                    Arrays.fill(im, 0.0);
+                    int fromX = Math.max(0, originX - radius);
+                    int toX = Math.min(width, originX + tileX + radius);
+                    int fromY = Math.max(0, originY - radius);
+                    int toY = Math.min(height, originY + tileY + radius);
+                    for (int y = fromY; y < toY; y++) {
+                        int inIdx = y * inputImg.stride;
+                        int tileIdx = (y - originY + radius) * sizeX - originX + radius;
+                        for (int x = fromX; x < toX; x++) {
+                            re[tileIdx + x] = in[inIdx + x];
+                        }
+                    }
+
+                    FFT.transform2D(re, im, sizeX, sizeY, false);
+                    for (int i = 0; i < re.length; i++) {
+                        double r = re[i] * kernelRe[i] + im[i] * kernelIm[i];
+                        double c = im[i] * kernelRe[i] - re[i] * kernelIm[i];
+                        re[i] = r;
+                        im[i] = c;
+                    }
+                    FFT.transform2D(re, im, sizeX, sizeY, true);
+
+                    // keep the alias free center
+                    int outToX = Math.min(width, originX + tileX);
+                    int outToY = Math.min(height, originY + tileY);
+                    for (int y = originY; y < outToY; y++) {
+                        int outIdx = y * returnImg.stride;
+                        int tileIdx = (y - originY + radius) * sizeX - originX + radius;
+                        for (int x = originX; x < outToX; x++) {
+                            out[outIdx + x] = re[tileIdx + x];
                         }
                     }
                 }
-                returnImg[x][y] = sum;
+            }
+        });
+    }
+
+    /**
+     * direct O(r^2) per pixel convolution, works for every kernel
+     *
+     * @param inputImg  The input image on which the kernel should be applied.
+     * @param returnImg The output image of the same size, must not be the input image.
+     * @param kernel    The kernel that should be applied on the image, format [x][y].
+     * @param radius    The radius of the kernel.
+     * @param parallel  true to process row bands in parallel
+     */
+    public static void convolveDirect(DoubleImage inputImg, DoubleImage returnImg, double[][] kernel, int radius,
+                                      boolean parallel) {
+        int width = inputImg.width;
+        int height = inputImg.height;
+        int stride = inputImg.stride;
+        double[] in = inputImg.pixels;
+        double[] out = returnImg.pixels;
+        int outStride = returnImg.stride;
+        int size = 2 * radius + 1;
+
+        // implemented WITHOUT correction factor for edges, see convolveDoubleNorm
+
+        // kernel transposed to [y][x] so that the innermost loop walks image row and kernel row in parallel
+        double[][] kernelRows = new double[size][size];
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                kernelRows[y][x] = kernel[x][y];
             }
         }
 
+        int interiorFromX = Math.min(radius, width);
+        int interiorToX = Math.max(interiorFromX, width - radius);
+        int interiorFromY = Math.min(radius, height);
+        int interiorToY = Math.max(interiorFromY, height - radius);
+
+        ParallelUtility.forEachBand(height, parallel, (fromRow, toRow) -> {
+            for (int y = fromRow; y < toRow; y++) {
+                int outIdx = y * outStride;
+                if (y < interiorFromY || y >= interiorToY) {
+                    for (int x = 0; x < width; x++) {
+                        out[outIdx + x] = convolveBorderPixel(in, width, height, stride, kernelRows, radius, x, y);
+                    }
+                    continue;
+                }
+
+                for (int x = 0; x < interiorFromX; x++) {
+                    out[outIdx + x] = convolveBorderPixel(in, width, height, stride, kernelRows, radius, x, y);
+                }
+
+                // interior: every tap is inside the image, no bounds checks. Tap-outer, pixel-inner order: each tap
+                // is one multiply-add over a contiguous row segment, a loop shape the JIT compiles to SIMD code.
+                for (int x = interiorFromX; x < interiorToX; x++) {
+                    out[outIdx + x] = 0.0;
+                }
+                for (int ky = 0; ky < size; ky++) {
+                    double[] kernelRow = kernelRows[ky];
+                    int rowIdx = (y - radius + ky) * stride - radius;
+                    for (int kx = 0; kx < size; kx++) {
+                        double weight = kernelRow[kx];
+                        int inIdx = rowIdx + kx;
+                        for (int x = interiorFromX; x < interiorToX; x++) {
+                            out[outIdx + x] += in[inIdx + x] * weight;
+                        }
+                    }
+                }
+
+                for (int x = interiorToX; x < width; x++) {
+                    out[outIdx + x] = convolveBorderPixel(in, width, height, stride, kernelRows, radius, x, y);
+                }
+            }
+        });
+    }
+
+    /**
+     * one pixel of the border band, the kernel is clipped to the image once instead of checking every tap
+     */
+    private static double convolveBorderPixel(double[] in, int width, int height, int stride, double[][] kernelRows,
+                                              int radius, int x, int y) {
+        int fromX = Math.max(-radius, -x);
+        int toX = Math.min(radius, width - 1 - x);
+        int fromY = Math.max(-radius, -y);
+        int toY = Math.min(radius, height - 1 - y);
+
+        double sum = 0.0;
+        for (int yOffset = fromY; yOffset <= toY; yOffset++) {
+            double[] kernelRow = kernelRows[yOffset + radius];
+            int rowIdx = (y + yOffset) * stride + x;
+            for (int xOffset = fromX; xOffset <= toX; xOffset++) {
+                sum += in[rowIdx + xOffset] * kernelRow[xOffset + radius];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * two-pass convolution with a rank-1 kernel kernel[x][y] = xKernel[x] * yKernel[y], O(r) per pixel. Zero padding
+     * is separable as well, so the result equals the direct convolution.
+     *
+     * @param inputImg  The input image on which the kernel should be applied.
+     * @param returnImg The output image of the same size, must not be the input image.
+     * @param xKernel   horizontal 1D kernel of size 2 * radius + 1
+     * @param yKernel   vertical 1D kernel of size 2 * radius + 1
+     * @param radius    The radius of the kernel.
+     * @param parallel  true to process row bands in parallel
+     */
+    public static void convolveSeparable(DoubleImage inputImg, DoubleImage returnImg, double[] xKernel, double[] yKernel,
+                                         int radius, boolean parallel) {
+        int width = inputImg.width;
+        int height = inputImg.height;
+        double[] in = inputImg.pixels;
+        double[] out = returnImg.pixels;
+        double[] tmp = new double[width * height];
+
+        // horizontal pass into tmp
+        ParallelUtility.forEachBand(height, parallel, (fromRow, toRow) -> {
+            for (int y = fromRow; y < toRow; y++) {
+                int inIdx = y * inputImg.stride;
+                int tmpIdx = y * width;
+                for (int x = 0; x < width; x++) {
+                    int fromOffset = Math.max(-radius, -x);
+                    int toOffset = Math.min(radius, width - 1 - x);
+                    double sum = 0.0;
+                    for (int xOffset = fromOffset; xOffset <= toOffset; xOffset++) {
+                        sum += in[inIdx + x + xOffset] * xKernel[xOffset + radius];
+                    }
+                    tmp[tmpIdx + x] = sum;
+                }
+            }
+        });
+
+        // vertical pass, row by row so that every tap reads a contiguous row of tmp
+        ParallelUtility.forEachBand(height, parallel, (fromRow, toRow) -> {
+            for (int y = fromRow; y < toRow; y++) {
+                int outIdx = y * returnImg.stride;
+                int fromOffset = Math.max(-radius, -y);
+                int toOffset = Math.min(radius, height - 1 - y);
+                for (int x = 0; x < width; x++) {
+                    out[outIdx + x] = 0.0;
+                }
+                for (int yOffset = fromOffset; yOffset <= toOffset; yOffset++) {
+                    double weight = yKernel[yOffset + radius];
+                    int tmpIdx = (y + yOffset) * width;
+                    for (int x = 0; x < width; x++) {
+                        out[outIdx + x] += tmp[tmpIdx + x] * weight;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * convolution with a constant kernel (e.g. getMeanMask) using running sums, cost per pixel is independent of
+     * the radius. Pixels outside the image contribute 0.0 as in convolveDouble.
+     *
+     * @param inputImg  The input image on which the kernel should be applied.
+     * @param returnImg The output image of the same size, must not be the input image.
+     * @param radius    The radius of the kernel.
+     * @param weight    The constant kernel entry, e.g. 1 / (2 * radius + 1)^2 for the mean mask.
+     * @param parallel  true to process row bands (horizontal pass) and column bands (vertical pass) in parallel
+     */
+    public static void convolveBox(DoubleImage inputImg, DoubleImage returnImg, int radius, double weight,
+                                   boolean parallel) {
+        int width = inputImg.width;
+        int height = inputImg.height;
+        double[] in = inputImg.pixels;
+        double[] out = returnImg.pixels;
+        double[] tmp = new double[width * height];
+
+        // horizontal running sum over [x - radius; x + radius]
+        ParallelUtility.forEachBand(height, parallel, (fromRow, toRow) -> {
+            for (int y = fromRow; y < toRow; y++) {
+                int inIdx = y * inputImg.stride;
+                int tmpIdx = y * width;
+                double sum = 0.0;
+                for (int x = 0; x < Math.min(radius, width); x++) {
+                    sum += in[inIdx + x];
+                }
+                for (int x = 0; x < width; x++) {
+                    if (x + radius < width) {
+                        sum += in[inIdx + x + radius];
+                    }
+                    if (x - radius - 1 >= 0) {
+                        sum -= in[inIdx + x - radius - 1];
+                    }
+                    tmp[tmpIdx + x] = sum;
+                }
+            }
+        });
+
+        // vertical running sum, one accumulator per column so that rows are read contiguously. Split into column
+        // bands: every column keeps its full top-to-bottom summation order, independent of the thread count.
+        ParallelUtility.forEachBand(width, parallel, (fromCol, toCol) -> {
+            double[] colSum = new double[toCol - fromCol];
+            for (int y = 0; y < Math.min(radius, height); y++) {
+                int tmpIdx = y * width;
+                for (int x = fromCol; x < toCol; x++) {
+                    colSum[x - fromCol] += tmp[tmpIdx + x];
+                }
+            }
+            for (int y = 0; y < height; y++) {
+                if (y + radius < height) {
+                    int addIdx = (y + radius) * width;
+                    for (int x = fromCol; x < toCol; x++) {
+                        colSum[x - fromCol] += tmp[addIdx + x];
+                    }
+                }
+                if (y - radius - 1 >= 0) {
+                    int subIdx = (y - radius - 1) * width;
+                    for (int x = fromCol; x < toCol; x++) {
+                        colSum[x - fromCol] -= tmp[subIdx + x];
+                    }
+                }
+                int outIdx = y * returnImg.stride;
+                for (int x = fromCol; x < toCol; x++) {
+                    out[outIdx + x] = colSum[x - fromCol] * weight;
+                }
+            }
+        });
+    }
+
+    // FLOAT32 PATH: same algorithms on FloatProcessor compatible buffers, half the memory traffic of double
+
+    /**
+     * float precision convolution of flat input image with kernel, pixels outside the image contribute 0.0
+     *
+     * @param inputImg The input image on which the kernel should be applied.
+     * @param kernel   The kernel that should be applied on the image, format [x][y].
+     * @param radius   The radius of the kernel.
+     * @return The image with the applied kernel.
+     */
+    public static FloatImage convolveFloat(FloatImage inputImg, double[][] kernel, int radius) {
+        FloatImage returnImg = new FloatImage(inputImg.width, inputImg.height);
+        convolveFloat(inputImg, returnImg, kernel, radius, false);
         return returnImg;
     }
 
+    /**
+     * multi-threaded convolveFloat, the result is identical to the serial one
+     *
+     * @param inputImg The input image on which the kernel should be applied.
+     * @param kernel   The kernel that should be applied on the image, format [x][y].
+     * @param radius   The radius of the kernel.
+     * @return The image with the applied kernel.
+     */
+    public static FloatImage convolveFloatParallel(FloatImage inputImg, double[][] kernel, int radius) {
+        FloatImage returnImg = new FloatImage(inputImg.width, inputImg.height);
+        convolveFloat(inputImg, returnImg, kernel, radius, true);
+        return returnImg;
+    }
+
+    /**
+     * float precision convolution into a preallocated output image, picks the same fast path as convolveDouble
+     *
+     * @param inputImg  The input image on which the kernel should be applied.
+     * @param returnImg The output image of the same size, must not be the input image.
+     * @param kernel    The kernel that should be applied on the image, format [x][y].
+     * @param radius    The radius of the kernel.
+     * @param parallel  true to split the work into row/column bands on ParallelUtility's pool
+     */
+    public static void convolveFloat(FloatImage inputImg, FloatImage returnImg, double[][] kernel, int radius,
+                                     boolean parallel) {
+        if (isConstantKernel(kernel)) {
+            convolveBoxFloat(inputImg, returnImg, radius, kernel[0][0], parallel);
+            return;
+        }
+
+        double[][] factors = getSeparableFactors(kernel);
+        int size = 2 * radius + 1;
+        double spatialCost = factors != null ? 2.0 * size : (double) size * size;
+        if (getFFTCostPerPixel(inputImg.width, inputImg.height, radius) < spatialCost) {
+            // transform cost dominates here, the FFT itself runs in double
+            DoubleImage convolved = new DoubleImage(inputImg.width, inputImg.height);
+            convolveFFT(ImageJUtility.toDoubleImage(inputImg), convolved, kernel, radius, parallel);
+            for (int y = 0; y < returnImg.height; y++) {
+                for (int x = 0; x < returnImg.width; x++) {
+                    returnImg.pixels[y * returnImg.stride + x] = (float) convolved.pixels[y * convolved.stride + x];
+                }
+            }
+        } else if (factors != null) {
+            convolveSeparableFloat(inputImg, returnImg, toFloat(factors[0]), toFloat(factors[1]), radius, parallel);
+        } else {
+            convolveDirectFloat(inputImg, returnImg, kernel, radius, parallel);
+        }
+    }
+
+    private static float[] toFloat(double[] arr) {
+        float[] result = new float[arr.length];
+        for (int i = 0; i < arr.length; i++) {
+            result[i] = (float) arr[i];
+        }
+        return result;
+    }
+
+    private static void convolveDirectFloat(FloatImage inputImg, FloatImage returnImg, double[][] kernel, int radius,
+                                            boolean parallel) {
+        int width = inputImg.width;
+        int height = inputImg.height;
+        int stride = inputImg.stride;
+        float[] in = inputImg.pixels;
+        float[] out = returnImg.pixels;
+        int outStride = returnImg.stride;
+        int size = 2 * radius + 1;
+
+        float[][] kernelRows = new float[size][size];
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                kernelRows[y][x] = (float) kernel[x][y];
+            }
+        }
+
+        int interiorFromX = Math.min(radius, width);
+        int interiorToX = Math.max(interiorFromX, width - radius);
+        int interiorFromY = Math.min(radius, height);
+        int interiorToY = Math.max(interiorFromY, height - radius);
+
+        ParallelUtility.forEachBand(height, parallel, (fromRow, toRow) -> {
+            for (int y = fromRow; y < toRow; y++) {
+                int outIdx = y * outStride;
+                if (y < interiorFromY || y >= interiorToY) {
+                    for (int x = 0; x < width; x++) {
+                        out[outIdx + x] = convolveBorderPixel(in, width, height, stride, kernelRows, radius, x, y);
+                    }
+                    continue;
+                }
+
+                for (int x = 0; x < interiorFromX; x++) {
+                    out[outIdx + x] = convolveBorderPixel(in, width, height, stride, kernelRows, radius, x, y);
+                }
+                for (int x = interiorToX; x < width; x++) {
+                    out[outIdx + x] = convolveBorderPixel(in, width, height, stride, kernelRows, radius, x, y);
+                }
+
+                // interior, tap-outer as in convolveDirect
+                for (int x = interiorFromX; x < interiorToX; x++) {
+                    out[outIdx + x] = 0.0f;
+                }
+                for (int ky = 0; ky < size; ky++) {
+                    float[] kernelRow = kernelRows[ky];
+                    int rowIdx = (y - radius + ky) * stride - radius;
+                    for (int kx = 0; kx < size; kx++) {
+                        float weight = kernelRow[kx];
+                        int inIdx = rowIdx + kx;
+                        for (int x = interiorFromX; x < interiorToX; x++) {
+                            out[outIdx + x] += in[inIdx + x] * weight;
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private static float convolveBorderPixel(float[] in, int width, int height, int stride, float[][] kernelRows,
+                                             int radius, int x, int y) {
+        int fromX = Math.max(-radius, -x);
+        int toX = Math.min(radius, width - 1 - x);
+        int fromY = Math.max(-radius, -y);
+        int toY = Math.min(radius, height - 1 - y);
+
+        float sum = 0.0f;
+        for (int yOffset = fromY; yOffset <= toY; yOffset++) {
+            float[] kernelRow = kernelRows[yOffset + radius];
+            int rowIdx = (y + yOffset) * stride + x;
+            for (int xOffset = fromX; xOffset <= toX; xOffset++) {
+                sum += in[rowIdx + xOffset] * kernelRow[xOffset + radius];
+            }
+        }
+        return sum;
+    }
+
+    private static void convolveSeparableFloat(FloatImage inputImg, FloatImage returnImg, float[] xKernel,
+                                               float[] yKernel, int radius, boolean parallel) {
+        int width = inputImg.width;
+        int height = inputImg.height;
+        float[] in = inputImg.pixels;
+        float[] out = returnImg.pixels;
+        float[] tmp = new float[width * height];
+
+        ParallelUtility.forEachBand(height, parallel, (fromRow, toRow) -> {
+            for (int y = fromRow; y < toRow; y++) {
+                int inIdx = y * inputImg.stride;
+                int tmpIdx = y * width;
+                for (int x = 0; x < width; x++) {
+                    int fromOffset = Math.max(-radius, -x);
+                    int toOffset = Math.min(radius, width - 1 - x);
+                    float sum = 0.0f;
+                    for (int xOffset = fromOffset; xOffset <= toOffset; xOffset++) {
+                        sum += in[inIdx + x + xOffset] * xKernel[xOffset + radius];
+                    }
+                    tmp[tmpIdx + x] = sum;
+                }
+            }
+        });
+
+        ParallelUtility.forEachBand(height, parallel, (fromRow, toRow) -> {
+            for (int y = fromRow; y < toRow; y++) {
+                int outIdx = y * returnImg.stride;
+                int fromOffset = Math.max(-radius, -y);
+                int toOffset = Math.min(radius, height - 1 - y);
+                for (int x = 0; x < width; x++) {
+                    out[outIdx + x] = 0.0f;
+                }
+                for (int yOffset = fromOffset; yOffset <= toOffset; yOffset++) {
+                    float weight = yKernel[yOffset + radius];
+                    int tmpIdx = (y + yOffset) * width;
+                    for (int x = 0; x < width; x++) {
+                        out[outIdx + x] += tmp[tmpIdx + x] * weight;
+                    }
+                }
+            }
+        });
+    }
+
+    private static void convolveBoxFloat(FloatImage inputImg, FloatImage returnImg, int radius, double weight,
+                                         boolean parallel) {
+        int width = inputImg.width;
+        int height = inputImg.height;
+        float[] in = inputImg.pixels;
+        float[] out = returnImg.pixels;
+        float[] tmp = new float[width * height];
+
+        // running sums are kept in double, a float accumulator drifts over long rows
+        ParallelUtility.forEachBand(height, parallel, (fromRow, toRow) -> {
+            for (int y = fromRow; y < toRow; y++) {
+                int inIdx = y * inputImg.stride;
+                int tmpIdx = y * width;
+                double sum = 0.0;
+                for (int x = 0; x < Math.min(radius, width); x++) {
+                    sum += in[inIdx + x];
+                }
+                for (int x = 0; x < width; x++) {
+                    if (x + radius < width) {
+                        sum += in[inIdx + x + radius];
+                    }
+                    if (x - radius - 1 >= 0) {
+                        sum -= in[inIdx + x - radius - 1];
+                    }
+                    tmp[tmpIdx + x] = (float) sum;
+                }
+            }
+        });
+
+        ParallelUtility.forEachBand(width, parallel, (fromCol, toCol) -> {
+            double[] colSum = new double[toCol - fromCol];
+            for (int y = 0; y < Math.min(radius, height); y++) {
+                int tmpIdx = y * width;
+                for (int x = fromCol; x < toCol; x++) {
+                    colSum[x - fromCol] += tmp[tmpIdx + x];
+                }
+            }
+            for (int y = 0; y < height; y++) {
+                if (y + radius < height) {
+                    int addIdx = (y + radius) * width;
+                    for (int x = fromCol; x < toCol; x++) {
+                        colSum[x - fromCol] += tmp[addIdx + x];
+                    }
+                }
+                if (y - radius - 1 >= 0) {
+                    int subIdx = (y - radius - 1) * width;
+                    for (int x = fromCol; x < toCol; x++) {
+                        colSum[x - fromCol] -= tmp[subIdx + x];
+                    }
+                }
+                int outIdx = y * returnImg.stride;
+                for (int x = fromCol; x < toCol; x++) {
+                    out[outIdx + x] = (float) (colSum[x - fromCol] * weight);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param kernel The kernel, format [x][y].
+     * @return true if all kernel entries are equal, e.g. for getMeanMask
+     */
+    public static boolean isConstantKernel(double[][] kernel) {
+        double val = kernel[0][0];
+        for (double[] column : kernel) {
+            for (double entry : column) {
+                if (entry != val) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * rank-1 decomposition kernel[x][y] = xKernel[x] * yKernel[y], e.g. for Sobel or Gaussian kernels
+     *
+     * @param kernel The kernel, format [x][y].
+     * @return {xKernel, yKernel} or null if the kernel is not separable
+     */
+    public static double[][] getSeparableFactors(double[][] kernel) {
+        int sizeX = kernel.length;
+        int sizeY = kernel[0].length;
+
+        // pivot on the largest entry for numerical stability
+        int pivotX = 0;
+        int pivotY = 0;
+        double maxAbs = 0.0;
+        for (int x = 0; x < sizeX; x++) {
+            for (int y = 0; y < sizeY; y++) {
+                if (Math.abs(kernel[x][y]) > maxAbs) {
+                    maxAbs = Math.abs(kernel[x][y]);
+                    pivotX = x;
+                    pivotY = y;
+                }
+            }
+        }
+        if (maxAbs == 0.0) {
+            return null;
+        }
+
+        double[] xKernel = new double[sizeX];
+        double[] yKernel = new double[sizeY];
+        for (int x = 0; x < sizeX; x++) {
+            xKernel[x] = kernel[x][pivotY];
+        }
+        for (int y = 0; y < sizeY; y++) {
+            yKernel[y] = kernel[pivotX][y] / kernel[pivotX][pivotY];
+        }
+
+        double tolerance = 1e-12 * maxAbs;
+        for (int x = 0; x < sizeX; x++) {
+            for (int y = 0; y < sizeY; y++) {
+                if (Math.abs(kernel[x][y] - xKernel[x] * yKernel[y]) > tolerance) {
+                    return null;
+                }
+            }
+        }
+
+        return new double[][]{xKernel, yKernel};
+    }
+
+    /**
+     * @param kernel The kernel, format [x][y].
+     * @return table with sat[x][y] = sum of kernel[0..x-1][0..y-1]
+     */
+    private static double[][] getSummedAreaTable(double[][] kernel) {
+        int sizeX = kernel.length;
+        int sizeY = kernel[0].length;
+        double[][] sat = new double[sizeX + 1][sizeY + 1];
+        for (int x = 0; x < sizeX; x++) {
+            for (int y = 0; y < sizeY; y++) {
+                sat[x + 1][y + 1] = kernel[x][y] + sat[x][y + 1] + sat[x + 1][y] - sat[x][y];
+            }
+        }
+        return sat;
+    }
+
     /**
      * returns kernel image according to specified radius for mean low-pass filtering
      *
@@ -0,0 +1,127 @@
+/**
+ * Exact Euclidean distance transform of a flat, row-major binary mask after Felzenszwalb and Huttenlocher: the 2D
+ * transform is separated into a 1D pass over every column and one over every row. On a binary mask the column pass
+ * is just the distance to the nearest background pixel of the column, two scans in row order; the row pass computes
+ * the lower envelope of the parabolas rooted at the column results in linear time. Columns and rows are independent,
+ * so both passes split into bands on ParallelUtility's pool without changing the result.
+ */
+public class DistanceTransform {
+
+    /**
+     * squared distance of a foreground pixel without any background pixel in the image
+     */
+    public static final int INF = Integer.MAX_VALUE;
+
+    // stands in for INF inside the envelope computation, large but far from overflowing a double
+    private static final double INF_DOUBLE = 1e20;
+
+    /**
+     * @param mask     binary mask, row-major, non-zero is foreground
+     * @param width    The width of the image.
+     * @param height   The height of the image.
+     * @param parallel true to run the column and row passes in bands on ParallelUtility's pool
+     * @return squared Euclidean distance of every pixel to the nearest background pixel, 0 on the background
+     */
+    public static int[] getSquaredDistances(byte[] mask, int width, int height, boolean parallel) {
+        int[] distances = new int[width * height];
+
+        // columns: distance to the nearest background pixel in the same column, downwards then upwards, squared
+        ParallelUtility.forEachBand(width, parallel, (fromX, toX) -> {
+            for (int y = 0; y < height; y++) {
+                int rowIdx = y * width;
+                for (int x = fromX; x < toX; x++) {
+                    if (mask[rowIdx + x] == 0) {
+                        distances[rowIdx + x] = 0;
+                    } else {
+                        int above = y > 0 ? distances[rowIdx - width + x] : INF;
+                        distances[rowIdx + x] = above == INF ? INF : above + 1;
+                    }
+                }
+            }
+            for (int y = height - 1; y >= 0; y--) {
+                int rowIdx = y * width;
+                for (int x = fromX; x < toX; x++) {
+                    int below = y < height - 1 ? distances[rowIdx + width + x] : INF;
+                    int distance = below == INF ? distances[rowIdx + x] : Math.min(distances[rowIdx + x], below + 1);
+                    distances[rowIdx + x] = distance;
+                }
+            }
+            for (int y = 0; y < height; y++) {
+                int rowIdx = y * width;
+                for (int x = fromX; x < toX; x++) {
+                    int distance = distances[rowIdx + x];
+                    distances[rowIdx + x] = distance == INF ? INF : distance * distance;
+                }
+            }
+        });
+
+        // rows: minimum over the column results of the row, in place
+        ParallelUtility.forEachBand(height, parallel, (fromY, toY) -> {
+            double[] f = new double[width];
+            double[] d = new double[width];
+            int[] v = new int[width];
+            double[] z = new double[width + 1];
+            for (int y = fromY; y < toY; y++) {
+                int rowIdx = y * width;
+                for (int x = 0; x < width; x++) {
+                    int distance = distances[rowIdx + x];
+                    f[x] = distance == INF ? INF_DOUBLE : distance;
+                }
+                transform(f, d, v, z, width);
+                for (int x = 0; x < width; x++) {
+                    distances[rowIdx + x] = toInt(d[x]);
+                }
+            }
+        });
+
+        return distances;
+    }
+
+    /**
+     * 1D transform d[q] = min over p of (q - p)^2 + f[p]
+     *
+     * @param f sampled function, INF_DOUBLE where undefined
+     * @param d output
+     * @param v scratch: roots of the parabolas in the lower envelope
+     * @param z scratch: boundaries between the envelope parabolas (n + 1 entries)
+     * @param n number of samples
+     */
+    private static void transform(double[] f, double[] d, int[] v, double[] z, int n) {
+        int k = 0;
+        v[0] = 0;
+        z[0] = Double.NEGATIVE_INFINITY;
+        z[1] = Double.POSITIVE_INFINITY;
+        for (int q = 1; q < n; q++) {
+            double s = getIntersection(f, q, v[k]);
+            while (s <= z[k]) {
+                k--;
+                s = getIntersection(f, q, v[k]);
+            }
+            k++;
+            v[k] = q;
+            z[k] = s;
+            z[k + 1] = Double.POSITIVE_INFINITY;
+        }
+
+        k = 0;
+        for (int q = 0; q < n; q++) {
+            while (z[k + 1] < q) {
+                k++;
+            }
+            double offset = q - v[k];
+            d[q] = offset * offset + f[v[k]];
+        }
+    }
+
+    /**
+     * @return position where the parabolas rooted at q and p intersect
+     */
+    private static double getIntersection(double[] f, int q, int p) {
+        return ((f[q] + (double) q * q) - (f[p] + (double) p * p)) / (2.0 * q - 2.0 * p);
+    }
+
+    private static int toInt(double distance) {
+        return distance >= INF_DOUBLE / 2 ? INF : (int) distance;
+    }
+
+}
@@ -0,0 +1,50 @@
+/**
+ * Flat, row-major double image backed by a single double[], used for intermediate filter results.
+ * Pixel (x, y) is stored at pixels[y * stride + x].
+ */
+public class DoubleImage {
+
+    public final int width;
+    public final int height;
+    public final int stride;
+    public final double[] pixels;
+
+    /**
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     */
+    public DoubleImage(int width, int height) {
+        this(new double[width * height], width, height, width);
+    }
+
+    /**
+     * wraps an existing buffer, no copy is made
+     *
+     * @param pixels The row-major pixel buffer.
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     * @param stride The distance between two rows in the buffer (>= width).
+     */
+    public DoubleImage(double[] pixels, int width, int height, int stride) {
+        if (stride < width || pixels.length < (height - 1) * stride + width) {
+            throw new IllegalArgumentException("buffer too small for " + width + "x" + height + " (stride " + stride + ")");
+        }
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+        this.stride = stride;
+    }
+
+    public int index(int x, int y) {
+        return y * stride + x;
+    }
+
+    public double get(int x, int y) {
+        return pixels[y * stride + x];
+    }
+
+    public void set(int x, int y, double val) {
+        pixels[y * stride + x] = val;
+    }
+
+}
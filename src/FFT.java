@@ -0,0 +1,143 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pure Java radix-2 complex FFT. A plan holds the bit reversal permutation and twiddle factors for one power of two
+ * size; plans are cached by size so that repeated transforms (e.g. every slice of a stack) do not recompute them.
+ * Plans are immutable and can be shared between threads.
+ */
+public class FFT {
+
+    private static final Map<Integer, FFT> PLANS = new ConcurrentHashMap<>();
+
+    public final int size;
+
+    private final int[] bitReversal;
+    private final double[] cosTable;
+    private final double[] sinTable;
+
+    private FFT(int size) {
+        if (size < 1 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+        }
+        this.size = size;
+
+        int bits = Integer.numberOfTrailingZeros(size);
+        bitReversal = new int[size];
+        for (int i = 0; i < size; i++) {
+            bitReversal[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+
+        cosTable = new double[size / 2];
+        sinTable = new double[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            double angle = -2.0 * Math.PI * i / size;
+            cosTable[i] = Math.cos(angle);
+            sinTable[i] = Math.sin(angle);
+        }
+    }
+
+    /**
+     * @param size transform size, must be a power of two
+     * @return cached plan for this size
+     */
+    public static FFT getPlan(int size) {
+        return PLANS.computeIfAbsent(size, FFT::new);
+    }
+
+    /**
+     * @param n minimum size
+     * @return smallest power of two >= n
+     */
+    public static int nextPowerOfTwo(int n) {
+        int size = 1;
+        while (size < n) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    /**
+     * in-place transform of size values starting at offset. The inverse transform is scaled by 1 / size, so
+     * forward followed by inverse returns the input.
+     *
+     * @param re      real parts
+     * @param im      imaginary parts
+     * @param offset  index of the first value
+     * @param inverse true for the inverse transform
+     */
+    public void transform(double[] re, double[] im, int offset, boolean inverse) {
+        for (int i = 0; i < size; i++) {
+            int j = bitReversal[i];
+            if (j > i) {
+                double tmp = re[offset + i];
+                re[offset + i] = re[offset + j];
+                re[offset + j] = tmp;
+                tmp = im[offset + i];
+                im[offset + i] = im[offset + j];
+                im[offset + j] = tmp;
+            }
+        }
+
+        double sign = inverse ? -1.0 : 1.0;
+        for (int len = 2; len <= size; len <<= 1) {
+            int half = len >> 1;
+            int tableStep = size / len;
+            for (int start = offset; start < offset + size; start += len) {
+                for (int k = 0; k < half; k++) {
+                    double wRe = cosTable[k * tableStep];
+                    double wIm = sign * sinTable[k * tableStep];
+                    int a = start + k;
+                    int b = a + half;
+                    double tRe = re[b] * wRe - im[b] * wIm;
+                    double tIm = re[b] * wIm + im[b] * wRe;
+                    re[b] = re[a] - tRe;
+                    im[b] = im[a] - tIm;
+                    re[a] += tRe;
+                    im[a] += tIm;
+                }
+            }
+        }
+
+        if (inverse) {
+            double scale = 1.0 / size;
+            for (int i = offset; i < offset + size; i++) {
+                re[i] *= scale;
+                im[i] *= scale;
+            }
+        }
+    }
+
+    /**
+     * in-place 2D transform of a row-major sizeX * sizeY complex image
+     *
+     * @param re      real parts, row-major
+     * @param im      imaginary parts, row-major
+     * @param sizeX   number of columns, power of two
+     * @param sizeY   number of rows, power of two
+     * @param inverse true for the inverse transform
+     */
+    public static void transform2D(double[] re, double[] im, int sizeX, int sizeY, boolean inverse) {
+        FFT rowPlan = getPlan(sizeX);
+        for (int y = 0; y < sizeY; y++) {
+            rowPlan.transform(re, im, y * sizeX, inverse);
+        }
+
+        // columns are gathered into a contiguous scratch line
+        FFT colPlan = getPlan(sizeY);
+        double[] colRe = new double[sizeY];
+        double[] colIm = new double[sizeY];
+        for (int x = 0; x < sizeX; x++) {
+            for (int y = 0; y < sizeY; y++) {
+                colRe[y] = re[y * sizeX + x];
+                colIm[y] = im[y * sizeX + x];
+            }
+            colPlan.transform(colRe, colIm, 0, inverse);
+            for (int y = 0; y < sizeY; y++) {
+                re[y * sizeX + x] = colRe[y];
+                im[y * sizeX + x] = colIm[y];
+            }
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.measure.ResultsTable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Headless result sink for one input image: result images are written as TIFF or PNG into an output folder (or
+ * dropped with format "none"), numeric results and result tables are collected for CSV files. Not shared between
+ * threads, BatchRunner creates one per input image.
+ */
+public class FileResultSink implements ResultSink {
+
+    private final File outputDir;
+    private final String imageName;
+    private final String format;
+
+    private final Map<String, Integer> usedNames = new HashMap<>();
+    private final List<String[]> results = new ArrayList<>();
+    private final Map<String, ResultsTable> tables = new LinkedHashMap<>();
+
+    /**
+     * @param outputDir folder for the result images, must exist
+     * @param imageName name of the input image, used as prefix for all result files
+     * @param format    "tif", "png" or "none"
+     */
+    public FileResultSink(File outputDir, String imageName, String format) {
+        this.outputDir = outputDir;
+        this.imageName = imageName;
+        this.format = format;
+    }
+
+    public void showImage(ImagePlus imp) {
+        if (format.equals("none")) {
+            return;
+        }
+
+        // stacks produce the same title for every slice, those get a running number
+        String baseName = imageName + "_" + imp.getTitle().replaceAll("[^A-Za-z0-9.-]+", "_");
+        int count = usedNames.merge(baseName, 1, Integer::sum);
+        String fileName = (count == 1 ? baseName : baseName + "_" + count) + "." + format;
+
+        String path = new File(outputDir, fileName).getPath();
+        FileSaver saver = new FileSaver(imp);
+        boolean saved = format.equals("png") ? saver.saveAsPng(path) : saver.saveAsTiff(path);
+        if (!saved) {
+            throw new IllegalStateException("could not write " + path);
+        }
+    }
+
+    public void putResult(String name, double value) {
+        results.add(new String[]{imageName, name, String.valueOf(value)});
+    }
+
+    /**
+     * rows are copied into one table per title with leading image and slice columns, the n-th table of a title
+     * belongs to slice n unless the table has a slice column of its own (e.g. one row per slice of a stack)
+     */
+    public void showTable(String title, ResultsTable table) {
+        ResultsTable collected = tables.computeIfAbsent(title, key -> new ResultsTable());
+        int slice = usedNames.merge("table " + title, 1, Integer::sum);
+        for (int row = 0; row < table.size(); row++) {
+            collected.incrementCounter();
+            collected.addValue("image", imageName);
+            collected.addValue("slice", slice);
+            copyRow(table, row, collected);
+        }
+    }
+
+    /**
+     * appends the cells of one row to the last row of target, string cells stay strings
+     */
+    static void copyRow(ResultsTable source, int row, ResultsTable target) {
+        for (String heading : source.getHeadings()) {
+            double value = source.getValue(heading, row);
+            if (Double.isNaN(value)) {
+                target.addValue(heading, source.getStringValue(heading, row));
+            } else {
+                target.addValue(heading, value);
+            }
+        }
+    }
+
+    /**
+     * @return rows of {image, result name, value} in the order they were reported
+     */
+    public List<String[]> getResults() {
+        return results;
+    }
+
+    /**
+     * @return all rows of every table title, in the order they were reported
+     */
+    public Map<String, ResultsTable> getTables() {
+        return tables;
+    }
+
+}
@@ -0,0 +1,81 @@
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Flat, row-major 32-bit float image backed by a single float[], layout compatible with ImageJ's FloatProcessor.
+ * Half the memory traffic of DoubleImage for intermediate filter results. Pixel (x, y) is stored at
+ * pixels[y * stride + x].
+ */
+public class FloatImage {
+
+    public final int width;
+    public final int height;
+    public final int stride;
+    public final float[] pixels;
+
+    /**
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     */
+    public FloatImage(int width, int height) {
+        this(new float[width * height], width, height, width);
+    }
+
+    /**
+     * wraps an existing buffer, no copy is made
+     *
+     * @param pixels The row-major pixel buffer.
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     * @param stride The distance between two rows in the buffer (>= width).
+     */
+    public FloatImage(float[] pixels, int width, int height, int stride) {
+        if (stride < width || pixels.length < (height - 1) * stride + width) {
+            throw new IllegalArgumentException("buffer too small for " + width + "x" + height + " (stride " + stride + ")");
+        }
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+        this.stride = stride;
+    }
+
+    /**
+     * zero-copy view of the pixel array of a 32-bit ImageProcessor
+     *
+     * @param ip The FloatProcessor.
+     * @return image sharing the processors float[]
+     */
+    public static FloatImage wrap(ImageProcessor ip) {
+        if (!(ip instanceof FloatProcessor)) {
+            throw new IllegalArgumentException("32-bit FloatProcessor required");
+        }
+        return new FloatImage((float[]) ip.getPixels(), ip.getWidth(), ip.getHeight(), ip.getWidth());
+    }
+
+    /**
+     * @return FloatProcessor sharing this buffer if possible (stride == width), otherwise a packed copy
+     */
+    public FloatProcessor toProcessor() {
+        if (stride == width && pixels.length == width * height) {
+            return new FloatProcessor(width, height, pixels);
+        }
+        float[] packed = new float[width * height];
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(pixels, y * stride, packed, y * width, width);
+        }
+        return new FloatProcessor(width, height, packed);
+    }
+
+    public int index(int x, int y) {
+        return y * stride + x;
+    }
+
+    public float get(int x, int y) {
+        return pixels[y * stride + x];
+    }
+
+    public void set(int x, int y, float val) {
+        pixels[y * stride + x] = val;
+    }
+
+}
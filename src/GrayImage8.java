@@ -0,0 +1,87 @@
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Flat, row-major 8-bit grayscale image backed by a single byte[]. Pixel (x, y) is stored at
+ * pixels[y * stride + x] and read back unsigned in [0;255].
+ */
+public class GrayImage8 {
+
+    public final int width;
+    public final int height;
+    public final int stride;
+    public final byte[] pixels;
+
+    /**
+     * allocates a new, black image
+     *
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     */
+    public GrayImage8(int width, int height) {
+        this(new byte[width * height], width, height, width);
+    }
+
+    /**
+     * wraps an existing buffer, no copy is made
+     *
+     * @param pixels The row-major pixel buffer.
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     * @param stride The distance between two rows in the buffer (>= width).
+     */
+    public GrayImage8(byte[] pixels, int width, int height, int stride) {
+        if (stride < width || pixels.length < (height - 1) * stride + width) {
+            throw new IllegalArgumentException("buffer too small for " + width + "x" + height + " (stride " + stride + ")");
+        }
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+        this.stride = stride;
+    }
+
+    /**
+     * zero-copy view of the pixel array of an 8-bit ImageProcessor
+     *
+     * @param ip The ByteProcessor from the plugins run method.
+     * @return image sharing the processors byte[]
+     */
+    public static GrayImage8 wrap(ImageProcessor ip) {
+        if (!(ip instanceof ByteProcessor)) {
+            throw new IllegalArgumentException("8-bit ByteProcessor required");
+        }
+        return new GrayImage8((byte[]) ip.getPixels(), ip.getWidth(), ip.getHeight(), ip.getWidth());
+    }
+
+    public int index(int x, int y) {
+        return y * stride + x;
+    }
+
+    public int get(int x, int y) {
+        return pixels[y * stride + x] & 0xff;
+    }
+
+    /**
+     * @param x   x-image coordinate
+     * @param y   y-image coordinate
+     * @param val value to store, only the lower 8 bits are kept (same as convertFrom2DIntArr)
+     */
+    public void set(int x, int y, int val) {
+        pixels[y * stride + x] = (byte) val;
+    }
+
+    /**
+     * @return ByteProcessor sharing this buffer if possible (stride == width), otherwise a packed copy
+     */
+    public ByteProcessor toProcessor() {
+        if (stride == width && pixels.length == width * height) {
+            return new ByteProcessor(width, height, pixels);
+        }
+        byte[] packed = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(pixels, y * stride, packed, y * width, width);
+        }
+        return new ByteProcessor(width, height, packed);
+    }
+
+}
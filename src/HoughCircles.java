@@ -0,0 +1,245 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Gradient-directed Hough transform for dark circles on a brighter background, radius in [minRadius;maxRadius].
+ * Every edge pixel votes for the centers along its gradient, towards the darker side, into one 2D accumulator, so
+ * the memory is one int per pixel whatever the radius range. Centers are picked greedily from the strongest
+ * accumulator peaks, the radius of a center is the distance best supported by the edge pixels around it. Touching
+ * circles stay separate, they only need centers more than minRadius apart.
+ * <p>
+ * The parallel voting splits the accumulator into bands of rows: every band walks over the edge pixels in reach and
+ * only counts the votes for its own rows, so there is no locking, no partial accumulators and the votes do not
+ * depend on the band layout.
+ */
+public class HoughCircles {
+
+    // an edge pixel supports a circle if its gradient is within about 25 degrees of the radial direction
+    private static final double MIN_RADIAL_COS = 0.9;
+
+    public final int count;
+    public final double[] centerX;
+    public final double[] centerY;
+    public final int[] radius;
+
+    /**
+     * per circle: supporting edge pixels per pixel of the circumference. Edges are a few pixels wide, so clear
+     * circles reach 2 - 3.
+     */
+    public final double[] support;
+
+    /**
+     * number of votes per center position
+     */
+    public final IntImage accumulator;
+
+    private HoughCircles(List<double[]> circles, IntImage accumulator) {
+        count = circles.size();
+        centerX = new double[count];
+        centerY = new double[count];
+        radius = new int[count];
+        support = new double[count];
+        for (int i = 0; i < count; i++) {
+            double[] circle = circles.get(i);
+            centerX[i] = circle[0];
+            centerY[i] = circle[1];
+            radius[i] = (int) circle[2];
+            support[i] = circle[3];
+        }
+        this.accumulator = accumulator;
+    }
+
+    /**
+     * @param gradX         derivative in x, e.g. from Sobel_.getGradients
+     * @param gradY         derivative in y, same size
+     * @param edgeThreshold minimum gradient magnitude of an edge pixel
+     * @param minRadius     smallest radius in pixels
+     * @param maxRadius     largest radius in pixels
+     * @param minVotes      minimum accumulator value of a center
+     * @param minSupport    minimum number of supporting edge pixels per pixel of the circumference
+     * @param parallel      true to vote in bands of rows on ParallelUtility's pool
+     * @return the detected circles, ordered by center x, then y
+     */
+    public static HoughCircles detect(FloatImage gradX, FloatImage gradY, double edgeThreshold, int minRadius,
+                                      int maxRadius, int minVotes, double minSupport, boolean parallel) {
+        if (minRadius < 1) {
+            throw new IllegalArgumentException("minRadius must be at least 1: " + minRadius);
+        }
+        int width = gradX.width;
+        int height = gradX.height;
+
+        // edge pixels in row-major order, with the unit vector towards the darker side
+        int edgeCount = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (getMagnitude(gradX, gradY, x, y) >= edgeThreshold) {
+                    edgeCount++;
+                }
+            }
+        }
+        int[] edgeX = new int[edgeCount];
+        int[] edgeY = new int[edgeCount];
+        float[] dirX = new float[edgeCount];
+        float[] dirY = new float[edgeCount];
+        int edge = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double magnitude = getMagnitude(gradX, gradY, x, y);
+                if (magnitude >= edgeThreshold) {
+                    edgeX[edge] = x;
+                    edgeY[edge] = y;
+                    dirX[edge] = (float) (-gradX.pixels[y * gradX.stride + x] / magnitude);
+                    dirY[edge] = (float) (-gradY.pixels[y * gradY.stride + x] / magnitude);
+                    edge++;
+                }
+            }
+        }
+
+        IntImage accumulator = new IntImage(width, height);
+        int[] votes = accumulator.pixels;
+        ParallelUtility.forEachBand(height, parallel, (fromRow, toRow) -> {
+            // only edge pixels within maxRadius rows of the band can vote into it
+            int from = getFirstEdgeInRow(edgeY, fromRow - maxRadius);
+            int to = getFirstEdgeInRow(edgeY, toRow + maxRadius);
+            for (int e = from; e < to; e++) {
+                for (int r = minRadius; r <= maxRadius; r++) {
+                    int cy = Math.round(edgeY[e] + r * dirY[e]);
+                    if (cy < fromRow || cy >= toRow) {
+                        continue;
+                    }
+                    int cx = Math.round(edgeX[e] + r * dirX[e]);
+                    if (cx >= 0 && cx < width) {
+                        votes[cy * width + cx]++;
+                    }
+                }
+            }
+        });
+
+        // candidate centers: local maxima with enough votes, strongest first
+        List<Integer> candidates = new ArrayList<>();
+        for (int y = 1; y < height - 1; y++) {
+            for (int x = 1; x < width - 1; x++) {
+                int idx = y * width + x;
+                if (votes[idx] >= minVotes && isLocalMax(votes, width, idx)) {
+                    candidates.add(idx);
+                }
+            }
+        }
+        candidates.sort((a, b) -> votes[a] != votes[b] ? Integer.compare(votes[b], votes[a]) : Integer.compare(a, b));
+
+        List<double[]> circles = new ArrayList<>();
+        for (int idx : candidates) {
+            double[] center = getWeightedCenter(votes, width, idx);
+            boolean suppressed = false;
+            for (double[] circle : circles) {
+                if (Math.hypot(circle[0] - center[0], circle[1] - center[1]) < minRadius) {
+                    suppressed = true;
+                    break;
+                }
+            }
+            if (suppressed) {
+                continue;
+            }
+
+            double[] fit = fitRadius(edgeX, edgeY, dirX, dirY, center[0], center[1], minRadius, maxRadius);
+            if (fit[1] >= minSupport) {
+                circles.add(new double[]{center[0], center[1], fit[0], fit[1]});
+            }
+        }
+
+        circles.sort((a, b) -> a[0] != b[0] ? Double.compare(a[0], b[0]) : Double.compare(a[1], b[1]));
+        return new HoughCircles(circles, accumulator);
+    }
+
+    private static double getMagnitude(FloatImage gradX, FloatImage gradY, int x, int y) {
+        double gx = gradX.pixels[y * gradX.stride + x];
+        double gy = gradY.pixels[y * gradY.stride + x];
+        return Math.sqrt(gx * gx + gy * gy);
+    }
+
+    /**
+     * @return index of the first edge pixel with edgeY >= y (edgeY is sorted)
+     */
+    private static int getFirstEdgeInRow(int[] edgeY, int y) {
+        int idx = Arrays.binarySearch(edgeY, y);
+        if (idx < 0) {
+            return -idx - 1;
+        }
+        while (idx > 0 && edgeY[idx - 1] == y) {
+            idx--;
+        }
+        return idx;
+    }
+
+    /**
+     * plateaus count once: a cell has to beat its preceding neighbours and match the following ones
+     */
+    private static boolean isLocalMax(int[] votes, int width, int idx) {
+        int value = votes[idx];
+        for (int dy = -1; dy <= 1; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+                int offset = dy * width + dx;
+                if (offset < 0 ? votes[idx + offset] >= value : votes[idx + offset] > value) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return {x, y} centroid of the votes in the 3x3 neighbourhood, the votes of one center spread over a few cells
+     */
+    private static double[] getWeightedCenter(int[] votes, int width, int idx) {
+        double sum = 0.0;
+        double sumX = 0.0;
+        double sumY = 0.0;
+        for (int dy = -1; dy <= 1; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+                int value = votes[idx + dy * width + dx];
+                sum += value;
+                sumX += value * dx;
+                sumY += value * dy;
+            }
+        }
+        return new double[]{idx % width + sumX / sum, idx / width + sumY / sum};
+    }
+
+    /**
+     * histogram of the distances of all edge pixels pointing at the center, the radius is the peak of the histogram
+     * smoothed over three bins
+     *
+     * @return {radius, support}
+     */
+    private static double[] fitRadius(int[] edgeX, int[] edgeY, float[] dirX, float[] dirY, double cx, double cy,
+                                      int minRadius, int maxRadius) {
+        int[] histogram = new int[maxRadius + 2];
+        int from = getFirstEdgeInRow(edgeY, (int) Math.floor(cy) - maxRadius - 1);
+        int to = getFirstEdgeInRow(edgeY, (int) Math.ceil(cy) + maxRadius + 2);
+        for (int e = from; e < to; e++) {
+            double dx = cx - edgeX[e];
+            double dy = cy - edgeY[e];
+            double distance = Math.sqrt(dx * dx + dy * dy);
+            int bin = (int) Math.round(distance);
+            if (bin < minRadius - 1 || bin > maxRadius + 1) {
+                continue;
+            }
+            if ((dx * dirX[e] + dy * dirY[e]) >= MIN_RADIAL_COS * distance) {
+                histogram[bin]++;
+            }
+        }
+
+        int bestRadius = minRadius;
+        int bestSum = -1;
+        for (int r = minRadius; r <= maxRadius; r++) {
+            int sum = histogram[r - 1] + histogram[r] + histogram[r + 1];
+            if (sum > bestSum) {
+                bestSum = sum;
+                bestRadius = r;
+            }
+        }
+        return new double[]{bestRadius, bestSum / (2.0 * Math.PI * bestRadius)};
+    }
+
+}
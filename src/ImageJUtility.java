@@ -1,14 +1,164 @@
+import ij.IJ;
 import ij.ImagePlus;
+import ij.Macro;
 import ij.gui.PolygonRoi;
+import ij.measure.ResultsTable;
 import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
 
+import java.awt.GraphicsEnvironment;
+
 /**
  * Utility class for working with ImageJ specific data types.
  */
 public class ImageJUtility {
 
+    // interactive default: one window per result image, numeric results are printed by the plugins themselves
+    private static final ResultSink WINDOW_SINK = new ResultSink() {
+        public void showImage(ImagePlus imp) {
+            imp.show();
+        }
+
+        public void putResult(String name, double value) {
+        }
+
+        public void showTable(String title, ResultsTable table) {
+            // ResultsTable.show needs a frame, unlike ImagePlus.show it does not check for a display itself
+            if (!GraphicsEnvironment.isHeadless()) {
+                table.show(title);
+            }
+        }
+    };
+
+    // per thread, so that batch workers can each write to their own sink
+    private static final ThreadLocal<ResultSink> RESULT_SINK = ThreadLocal.withInitial(() -> WINDOW_SINK);
+
+    // plugin parameters of batch runs, see setMacroOptions
+    private static final ThreadLocal<String> MACRO_OPTIONS = new ThreadLocal<>();
+
+    /**
+     * redirects all showNewImage calls and results of the current thread, e.g. to files for headless runs
+     *
+     * @param sink the new sink, null restores the window sink
+     */
+    public static void setResultSink(ResultSink sink) {
+        RESULT_SINK.set(sink != null ? sink : WINDOW_SINK);
+    }
+
+    /**
+     * @return the sink of the current thread
+     */
+    public static ResultSink getResultSink() {
+        return RESULT_SINK.get();
+    }
+
+    /**
+     * hands a result image to the current sink, plugins use this instead of ImagePlus.show()
+     *
+     * @param imp the result image
+     */
+    public static void showImage(ImagePlus imp) {
+        RESULT_SINK.get().showImage(imp);
+    }
+
+    /**
+     * reports a numeric result to the current sink
+     *
+     * @param name  name of the measurement
+     * @param value the measured value
+     */
+    public static void putResult(String name, double value) {
+        RESULT_SINK.get().putResult(name, value);
+    }
+
+    /**
+     * hands a result table to the current sink, plugins use this instead of ResultsTable.show()
+     *
+     * @param title name of the table
+     * @param table the result table
+     */
+    public static void showTable(String title, ResultsTable table) {
+        RESULT_SINK.get().showTable(title, table);
+    }
+
+    /**
+     * IJ.log for interactive runs only. Batch workers report through their sink, the log lines of images processed
+     * in parallel would just interleave.
+     *
+     * @param message the line to log
+     */
+    public static void log(String message) {
+        if (isInteractive()) {
+            IJ.log(message);
+        }
+    }
+
+    /**
+     * sets the plugin parameters of the current thread for headless runs, e.g. "tmin=100 tmax=200". Macro.getOptions
+     * only serves ImageJ's own macro threads, so batch workers pass their options here.
+     *
+     * @param options parameters in macro syntax, null clears them
+     */
+    public static void setMacroOptions(String options) {
+        MACRO_OPTIONS.set(options);
+    }
+
+    private static String getMacroOptions() {
+        String options = MACRO_OPTIONS.get();
+        // Macro.getValue expects a trailing space, like Macro.getOptions returns it
+        return options != null ? options + " " : Macro.getOptions();
+    }
+
+    /**
+     * reads a plugin parameter from the macro options of the current thread, used instead of a GenericDialog when
+     * running headless. The key is the dialog label in lower case without spaces and colon, as in ImageJ macros.
+     *
+     * @param key          e.g. "tmin"
+     * @param defaultValue value if the option is missing
+     * @return the parameter value
+     */
+    public static double getMacroParameter(String key, double defaultValue) {
+        String options = getMacroOptions();
+        if (options == null) {
+            return defaultValue;
+        }
+        String value = Macro.getValue(options, key, null);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
+    /**
+     * @param key          e.g. "search"
+     * @param defaultValue value if the option is missing
+     * @return the parameter value, e.g. the selected item of a choice
+     */
+    public static String getMacroParameter(String key, String defaultValue) {
+        String options = getMacroOptions();
+        if (options == null) {
+            return defaultValue;
+        }
+        return Macro.getValue(options, key, defaultValue);
+    }
+
+    /**
+     * plugins read their parameters with getMacroParameter instead of showing a GenericDialog if this is true.
+     * Batch workers always have options bound (possibly empty), so they never open modal dialogs, whether or not
+     * java.awt.headless is set.
+     *
+     * @return true if macro options are set for the current thread (batch workers, ImageJ macros) or no dialog can
+     * be opened (java.awt.headless, no display)
+     */
+    public static boolean useMacroOptions() {
+        return getMacroOptions() != null || GraphicsEnvironment.isHeadless();
+    }
+
+    /**
+     * @return true if results of the current thread go to windows, false while a batch sink is installed
+     */
+    public static boolean isInteractive() {
+        return RESULT_SINK.get() == WINDOW_SINK;
+    }
+
     /**
      * @param pixels 1D byte array from ImageProcessor
      * @param width  The width of the image.
@@ -16,21 +166,7 @@ public class ImageJUtility {
      * @return 2D image array
      */
     public static int[][] convertFrom1DByteArr(byte[] pixels, int width, int height) {
-
-        int[][] inArray2D = new int[width][height];
-
-        int pixelIdx1D = 0;
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                inArray2D[x][y] = pixels[pixelIdx1D];
-                if (inArray2D[x][y] < 0) {
-                    inArray2D[x][y] += 256;
-                } // if
-                pixelIdx1D++;
-            }
-        }
-
-        return inArray2D;
+        return toIntArr2D(new GrayImage8(pixels, width, height, width));
     }
 
     /**
@@ -80,21 +216,374 @@ public class ImageJUtility {
      * @return The resulting byte representation.
      */
     public static byte[] convertFrom2DIntArr(int[][] inArr, int width, int height) {
-        int pixelIdx1D = 0;
-        byte[] outArray2D = new byte[width * height];
+        return toGrayImage8(inArr, width, height).pixels;
+    }
+
+    // FLAT IMAGE CONVERSIONS (row-major, one primitive array per image)
+
+    /**
+     * @param inImg 8-bit input image
+     * @return int copy of the image, values in [0;255]
+     */
+    public static IntImage toIntImage(GrayImage8 inImg) {
+        int width = inImg.width;
+        int height = inImg.height;
+        IntImage returnImg = new IntImage(width, height);
+        int[] out = returnImg.pixels;
+        byte[] in = inImg.pixels;
 
         for (int y = 0; y < height; y++) {
+            int inIdx = y * inImg.stride;
+            int outIdx = y * width;
             for (int x = 0; x < width; x++) {
-                int resultVal = inArr[x][y];
-                if (resultVal > 127) {
-                    resultVal -= 256;
-                }
-                outArray2D[pixelIdx1D] = (byte) resultVal;
-                pixelIdx1D++;
+                out[outIdx + x] = in[inIdx + x] & 0xff;
+            }
+        }
+
+        return returnImg;
+    }
+
+    /**
+     * @param inImg double input image
+     * @return int copy rounded with (int) (v + 0.5) like convertToIntArr2D, values are not clamped (e.g. -1 for out
+     * of image positions becomes 0 on both paths)
+     */
+    public static IntImage toIntImage(DoubleImage inImg) {
+        int width = inImg.width;
+        int height = inImg.height;
+        IntImage returnImg = new IntImage(width, height);
+        int[] out = returnImg.pixels;
+        double[] in = inImg.pixels;
+
+        for (int y = 0; y < height; y++) {
+            int inIdx = y * inImg.stride;
+            int outIdx = y * width;
+            for (int x = 0; x < width; x++) {
+                out[outIdx + x] = (int) (in[inIdx + x] + 0.5);
+            }
+        }
+
+        return returnImg;
+    }
+
+    /**
+     * @param inImg 8-bit input image
+     * @return double copy of the image for intermediate calculations
+     */
+    public static DoubleImage toDoubleImage(GrayImage8 inImg) {
+        DoubleImage returnImg = new DoubleImage(inImg.width, inImg.height);
+        readInto(inImg, returnImg);
+        return returnImg;
+    }
+
+    /**
+     * @param inImg int input image, may contain values outside [0;255] (e.g. -1 for out of image positions)
+     * @return double copy of the image
+     */
+    public static DoubleImage toDoubleImage(IntImage inImg) {
+        int width = inImg.width;
+        int height = inImg.height;
+        DoubleImage returnImg = new DoubleImage(width, height);
+        double[] out = returnImg.pixels;
+        int[] in = inImg.pixels;
+
+        for (int y = 0; y < height; y++) {
+            int inIdx = y * inImg.stride;
+            int outIdx = y * width;
+            for (int x = 0; x < width; x++) {
+                out[outIdx + x] = in[inIdx + x];
+            }
+        }
+
+        return returnImg;
+    }
+
+    /**
+     * copies an 8-bit image into an existing double buffer, e.g. a scratch image reused for every stack slice
+     *
+     * @param inImg  8-bit input image
+     * @param outImg double target image of the same size
+     */
+    public static void readInto(GrayImage8 inImg, DoubleImage outImg) {
+        int width = inImg.width;
+        int height = inImg.height;
+        double[] out = outImg.pixels;
+        byte[] in = inImg.pixels;
+
+        for (int y = 0; y < height; y++) {
+            int inIdx = y * inImg.stride;
+            int outIdx = y * outImg.stride;
+            for (int x = 0; x < width; x++) {
+                out[outIdx + x] = in[inIdx + x] & 0xff;
+            }
+        }
+    }
+
+    /**
+     * conversion to 8-bit, only the lower 8 bits of every value are kept (same as convertFrom2DIntArr)
+     *
+     * @param inImg int input image
+     * @return 8-bit image
+     */
+    public static GrayImage8 toGrayImage8(IntImage inImg) {
+        int width = inImg.width;
+        int height = inImg.height;
+        GrayImage8 returnImg = new GrayImage8(width, height);
+        byte[] out = returnImg.pixels;
+        int[] in = inImg.pixels;
+
+        for (int y = 0; y < height; y++) {
+            int inIdx = y * inImg.stride;
+            int outIdx = y * width;
+            for (int x = 0; x < width; x++) {
+                out[outIdx + x] = (byte) in[inIdx + x];
             }
         }
 
-        return outArray2D;
+        return returnImg;
+    }
+
+    /**
+     * conversion to 8-bit with rounding (same as convertToIntArr2D followed by convertFrom2DIntArr)
+     *
+     * @param inImg double input image
+     * @return 8-bit image
+     */
+    public static GrayImage8 toGrayImage8(DoubleImage inImg) {
+        GrayImage8 returnImg = new GrayImage8(inImg.width, inImg.height);
+        writeTo(inImg, returnImg);
+        return returnImg;
+    }
+
+    /**
+     * rounds a double image into an existing 8-bit image, e.g. the ImageProcessors own buffer
+     *
+     * @param inImg  double input image
+     * @param outImg 8-bit target image of the same size
+     */
+    public static void writeTo(DoubleImage inImg, GrayImage8 outImg) {
+        int width = inImg.width;
+        int height = inImg.height;
+        byte[] out = outImg.pixels;
+        double[] in = inImg.pixels;
+
+        for (int y = 0; y < height; y++) {
+            int inIdx = y * inImg.stride;
+            int outIdx = y * outImg.stride;
+            for (int x = 0; x < width; x++) {
+                out[outIdx + x] = (byte) (int) (in[inIdx + x] + 0.5);
+            }
+        }
+    }
+
+    /**
+     * @param inImg 8-bit input image
+     * @return float copy of the image for intermediate calculations
+     */
+    public static FloatImage toFloatImage(GrayImage8 inImg) {
+        FloatImage returnImg = new FloatImage(inImg.width, inImg.height);
+        readInto(inImg, returnImg);
+        return returnImg;
+    }
+
+    /**
+     * copies an 8-bit image into an existing float buffer
+     *
+     * @param inImg  8-bit input image
+     * @param outImg float target image of the same size
+     */
+    public static void readInto(GrayImage8 inImg, FloatImage outImg) {
+        int width = inImg.width;
+        int height = inImg.height;
+        float[] out = outImg.pixels;
+        byte[] in = inImg.pixels;
+
+        for (int y = 0; y < height; y++) {
+            int inIdx = y * inImg.stride;
+            int outIdx = y * outImg.stride;
+            for (int x = 0; x < width; x++) {
+                out[outIdx + x] = in[inIdx + x] & 0xff;
+            }
+        }
+    }
+
+    /**
+     * rounds a float image into an existing 8-bit image, same rounding as for double images
+     *
+     * @param inImg  float input image
+     * @param outImg 8-bit target image of the same size
+     */
+    public static void writeTo(FloatImage inImg, GrayImage8 outImg) {
+        int width = inImg.width;
+        int height = inImg.height;
+        byte[] out = outImg.pixels;
+        float[] in = inImg.pixels;
+
+        for (int y = 0; y < height; y++) {
+            int inIdx = y * inImg.stride;
+            int outIdx = y * outImg.stride;
+            for (int x = 0; x < width; x++) {
+                out[outIdx + x] = (byte) (int) (in[inIdx + x] + 0.5f);
+            }
+        }
+    }
+
+    /**
+     * @param inImg float input image
+     * @return double copy, e.g. for the FFT path
+     */
+    public static DoubleImage toDoubleImage(FloatImage inImg) {
+        DoubleImage returnImg = new DoubleImage(inImg.width, inImg.height);
+        for (int y = 0; y < inImg.height; y++) {
+            int inIdx = y * inImg.stride;
+            int outIdx = y * returnImg.stride;
+            for (int x = 0; x < inImg.width; x++) {
+                returnImg.pixels[outIdx + x] = inImg.pixels[inIdx + x];
+            }
+        }
+        return returnImg;
+    }
+
+    // ADAPTERS between the flat images and the [width][height] arrays used by the lab plugins
+
+    /**
+     * @param inImg 8-bit input image
+     * @return 2D image array, values in [0;255]
+     */
+    public static int[][] toIntArr2D(GrayImage8 inImg) {
+        int width = inImg.width;
+        int height = inImg.height;
+        int[][] returnArr = new int[width][height];
+        byte[] in = inImg.pixels;
+
+        for (int y = 0; y < height; y++) {
+            int inIdx = y * inImg.stride;
+            for (int x = 0; x < width; x++) {
+                returnArr[x][y] = in[inIdx + x] & 0xff;
+            }
+        }
+
+        return returnArr;
+    }
+
+    /**
+     * @param inImg int input image
+     * @return 2D image array
+     */
+    public static int[][] toIntArr2D(IntImage inImg) {
+        int width = inImg.width;
+        int height = inImg.height;
+        int[][] returnArr = new int[width][height];
+        int[] in = inImg.pixels;
+
+        for (int x = 0; x < width; x++) {
+            int[] column = returnArr[x];
+            for (int y = 0; y < height; y++) {
+                column[y] = in[y * inImg.stride + x];
+            }
+        }
+
+        return returnArr;
+    }
+
+    /**
+     * @param inImg double input image
+     * @return 2D image array
+     */
+    public static double[][] toDoubleArr2D(DoubleImage inImg) {
+        int width = inImg.width;
+        int height = inImg.height;
+        double[][] returnArr = new double[width][height];
+        double[] in = inImg.pixels;
+
+        for (int x = 0; x < width; x++) {
+            double[] column = returnArr[x];
+            for (int y = 0; y < height; y++) {
+                column[y] = in[y * inImg.stride + x];
+            }
+        }
+
+        return returnArr;
+    }
+
+    /**
+     * @param inArr  int[][] image array
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     * @return flat copy of the image
+     */
+    public static IntImage toIntImage(int[][] inArr, int width, int height) {
+        IntImage returnImg = new IntImage(width, height);
+        int[] out = returnImg.pixels;
+
+        for (int x = 0; x < width; x++) {
+            int[] column = inArr[x];
+            for (int y = 0; y < height; y++) {
+                out[y * width + x] = column[y];
+            }
+        }
+
+        return returnImg;
+    }
+
+    /**
+     * @param inArr  double[][] image array
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     * @return flat copy of the image
+     */
+    public static DoubleImage toDoubleImage(double[][] inArr, int width, int height) {
+        DoubleImage returnImg = new DoubleImage(width, height);
+        double[] out = returnImg.pixels;
+
+        for (int x = 0; x < width; x++) {
+            double[] column = inArr[x];
+            for (int y = 0; y < height; y++) {
+                out[y * width + x] = column[y];
+            }
+        }
+
+        return returnImg;
+    }
+
+    /**
+     * @param inArr  int[][] image array
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     * @return 8-bit image, only the lower 8 bits of every value are kept
+     */
+    public static GrayImage8 toGrayImage8(int[][] inArr, int width, int height) {
+        GrayImage8 returnImg = new GrayImage8(width, height);
+        byte[] out = returnImg.pixels;
+
+        for (int x = 0; x < width; x++) {
+            int[] column = inArr[x];
+            for (int y = 0; y < height; y++) {
+                out[y * width + x] = (byte) column[y];
+            }
+        }
+
+        return returnImg;
+    }
+
+    /**
+     * @param inArr  double[][] image array
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     * @return 8-bit image, rounded as in convertToIntArr2D
+     */
+    public static GrayImage8 toGrayImage8(double[][] inArr, int width, int height) {
+        GrayImage8 returnImg = new GrayImage8(width, height);
+        byte[] out = returnImg.pixels;
+
+        for (int x = 0; x < width; x++) {
+            double[] column = inArr[x];
+            for (int y = 0; y < height; y++) {
+                out[y * width + x] = (byte) (int) (column[y] + 0.5);
+            }
+        }
+
+        return returnImg;
     }
 
     /**
@@ -129,9 +618,26 @@ public class ImageJUtility {
      * @param title  The window title.
      */
     public static void showNewImage(double[][] inArr, int width, int height, String title) {
-        int[][] intArr = ImageJUtility.convertToIntArr2D(inArr, width, height);
-        byte[] byteArr = ImageJUtility.convertFrom2DIntArr(intArr, width, height);
-        ImageJUtility.showNewImage(byteArr, width, height, title);
+        ImageJUtility.showNewImage(ImageJUtility.toGrayImage8(inArr, width, height), title);
+    }
+
+    /**
+     * opening new window for a flat image, the buffer is handed over to ImageJ without copy
+     *
+     * @param inImg The 8-bit image.
+     * @param title The window title.
+     */
+    public static void showNewImage(GrayImage8 inImg, String title) {
+        ImagePlus ip = new ImagePlus(title, inImg.toProcessor());
+        showImage(ip);
+    }
+
+    /**
+     * @param inImg double image, rounded to 8-bit for visualization
+     * @param title The window title.
+     */
+    public static void showNewImage(DoubleImage inImg, String title) {
+        ImageJUtility.showNewImage(ImageJUtility.toGrayImage8(inImg), title);
     }
 
 
@@ -154,7 +660,7 @@ public class ImageJUtility {
         }
 
         ImagePlus ip = new ImagePlus(title, outImgProc);
-        ip.show();
+        showImage(ip);
     }
 
     /**
@@ -168,7 +674,7 @@ public class ImageJUtility {
         outImgProc.setPixels(inByteArr);
 
         ImagePlus ip = new ImagePlus(title, outImgProc);
-        ip.show();
+        showImage(ip);
     }
 
     /**
@@ -184,7 +690,7 @@ public class ImageJUtility {
 
         ImagePlus ip = new ImagePlus(title, outImgProc);
         ip.setRoi(roi);
-        ip.show();
+        showImage(ip);
     }
 
 
@@ -24,6 +24,62 @@ public class ImageTransformationFilter {
         return returnImg;
     }
 
+    /**
+     * apply scalar transformation on a flat 8-bit image
+     *
+     * @param inImg            The input image.
+     * @param transferFunction The transferFunction, needs at least 256 entries.
+     * @return The resulting image.
+     */
+    public static GrayImage8 getTransformedImage(GrayImage8 inImg, int[] transferFunction) {
+        GrayImage8 returnImg = new GrayImage8(inImg.width, inImg.height);
+        applyTransferFunction(inImg, returnImg, transferFunction);
+        return returnImg;
+    }
+
+    /**
+     * apply scalar transformation without allocating: outImg may be a preallocated buffer or inImg itself (in-place)
+     *
+     * @param inImg            The input image.
+     * @param outImg           The target image of the same size, may be the same instance as inImg.
+     * @param transferFunction The transferFunction, needs at least 256 entries.
+     */
+    public static void applyTransferFunction(GrayImage8 inImg, GrayImage8 outImg, int[] transferFunction) {
+        byte[] in = inImg.pixels;
+        byte[] out = outImg.pixels;
+
+        for (int y = 0; y < inImg.height; y++) {
+            int inIdx = y * inImg.stride;
+            int outIdx = y * outImg.stride;
+            for (int x = 0; x < inImg.width; x++) {
+                out[outIdx + x] = (byte) transferFunction[in[inIdx + x] & 0xff];
+            }
+        }
+    }
+
+    /**
+     * apply scalar transformation on a flat int image
+     *
+     * @param inImg            The input image.
+     * @param transferFunction The transferFunction where the index corresponds to a input value.
+     * @return The resulting image.
+     */
+    public static IntImage getTransformedImage(IntImage inImg, int[] transferFunction) {
+        IntImage returnImg = new IntImage(inImg.width, inImg.height);
+        int[] in = inImg.pixels;
+        int[] out = returnImg.pixels;
+
+        for (int y = 0; y < inImg.height; y++) {
+            int inIdx = y * inImg.stride;
+            int outIdx = y * returnImg.stride;
+            for (int x = 0; x < inImg.width; x++) {
+                out[outIdx + x] = transferFunction[in[inIdx + x]];
+            }
+        }
+
+        return returnImg;
+    }
+
     /**
      * get transfer function for contrast inversion
      *
@@ -0,0 +1,50 @@
+/**
+ * Flat, row-major int image backed by a single int[], e.g. for label or intermediate images.
+ * Pixel (x, y) is stored at pixels[y * stride + x].
+ */
+public class IntImage {
+
+    public final int width;
+    public final int height;
+    public final int stride;
+    public final int[] pixels;
+
+    /**
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     */
+    public IntImage(int width, int height) {
+        this(new int[width * height], width, height, width);
+    }
+
+    /**
+     * wraps an existing buffer, no copy is made
+     *
+     * @param pixels The row-major pixel buffer.
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     * @param stride The distance between two rows in the buffer (>= width).
+     */
+    public IntImage(int[] pixels, int width, int height, int stride) {
+        if (stride < width || pixels.length < (height - 1) * stride + width) {
+            throw new IllegalArgumentException("buffer too small for " + width + "x" + height + " (stride " + stride + ")");
+        }
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+        this.stride = stride;
+    }
+
+    public int index(int x, int y) {
+        return y * stride + x;
+    }
+
+    public int get(int x, int y) {
+        return pixels[y * stride + x];
+    }
+
+    public void set(int x, int y, int val) {
+        pixels[y * stride + x] = val;
+    }
+
+}
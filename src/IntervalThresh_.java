@@ -9,19 +9,16 @@ import ij.process.ImageProcessor;
  */
 public class IntervalThresh_ implements PlugInFilter {
 
+	// arg "inplace" writes the result into the processors own pixels instead of opening a new window
+	private boolean inPlace = false;
+
+	// built once in setup, shared by all slices of a stack
+	private int[] binaryThresholdTF;
+
 	public int setup(String arg, ImagePlus imp) {
 		if (arg.equals("about"))
 			{showAbout(); return DONE;}
-		return DOES_8G+DOES_STACKS+SUPPORTS_MASKING;
-	} //setup
-
-
-	public void run(ImageProcessor ip) {
-		byte[] pixels = (byte[])ip.getPixels();
-		int width = ip.getWidth();
-		int height = ip.getHeight();
-
-		int[][] inDataArrInt = ImageJUtility.convertFrom1DByteArr(pixels, width, height);
+		inPlace = arg.equals("inplace");
 
 		int fg_val = 255;
 		int bg_val = 0;
@@ -29,22 +26,42 @@ public class IntervalThresh_ implements PlugInFilter {
 		int tmin = 100;
 		int tmax = 255;
 
-		GenericDialog gd = new GenericDialog("User input");
-		gd.addNumericField("Tmin: ", tmin, 0);
-		gd.addNumericField("Tmax: ", tmax, 0);
+		if (ImageJUtility.useMacroOptions()) {
+			// batch runs pass "tmin=... tmax=..." as macro options
+			tmin = (int) ImageJUtility.getMacroParameter("tmin", tmin);
+			tmax = (int) ImageJUtility.getMacroParameter("tmax", tmax);
+		} else {
+			GenericDialog gd = new GenericDialog("User input");
+			gd.addNumericField("Tmin: ", tmin, 0);
+			gd.addNumericField("Tmax: ", tmax, 0);
 
-		gd.showDialog();
+			gd.showDialog();
 
-		if (gd.wasCanceled()) {
-			return;
+			if (gd.wasCanceled()) {
+				return DONE;
+			}
+
+			tmin = (int) gd.getNextNumber();
+			tmax = (int) gd.getNextNumber();
 		}
 
-		tmin = (int) gd.getNextNumber();
-		tmax = (int) gd.getNextNumber();
+		binaryThresholdTF = ImageTransformationFilter.getBinaryThresholdTF(fg_val, tmin, tmax, fg_val, bg_val);
+
+		return DOES_8G+DOES_STACKS+SUPPORTS_MASKING;
+	} //setup
+
+
+	public void run(ImageProcessor ip) {
+		// zero-copy view, at most one output buffer is allocated per slice
+		GrayImage8 inImg = GrayImage8.wrap(ip);
+
+		if (inPlace) {
+			ImageTransformationFilter.applyTransferFunction(inImg, inImg, binaryThresholdTF);
+			return;
+		}
 
-		int[] binaryThresholdTF = ImageTransformationFilter.getBinaryThresholdTF(fg_val, tmin, tmax, fg_val, bg_val);
-		int[][] transformedImage = ImageTransformationFilter.getTransformedImage(inDataArrInt, width, height, binaryThresholdTF);
-		ImageJUtility.showNewImage(transformedImage, width, height, "Threshold");
+		GrayImage8 transformedImage = ImageTransformationFilter.getTransformedImage(inImg, binaryThresholdTF);
+		ImageJUtility.showNewImage(transformedImage, "Threshold");
 
 	} //run
 
@@ -8,24 +8,30 @@ import ij.process.ImageProcessor;
  */
 public class Invert_ implements PlugInFilter {
 
+	// arg "inplace" writes the result into the processors own pixels instead of opening a new window
+	private boolean inPlace = false;
+
 	public int setup(String arg, ImagePlus imp) {
 		if (arg.equals("about"))
 			{showAbout(); return DONE;}
+		inPlace = arg.equals("inplace");
 		return DOES_8G+DOES_STACKS+SUPPORTS_MASKING;
 	} //setup
 
 
 	public void run(ImageProcessor ip) {
-		byte[] pixels = (byte[])ip.getPixels();
-		int width = ip.getWidth();
-		int height = ip.getHeight();
-
-		int[][] inDataArrInt = ImageJUtility.convertFrom1DByteArr(pixels, width, height);
+		// zero-copy view, at most one output buffer is allocated per slice
+		GrayImage8 inImg = GrayImage8.wrap(ip);
 		int[] inversionTF = ImageTransformationFilter.getInversionTF(255);
 
-		int[][] transformedImage = ImageTransformationFilter.getTransformedImage(inDataArrInt, width, height, inversionTF);
+		if (inPlace) {
+			ImageTransformationFilter.applyTransferFunction(inImg, inImg, inversionTF);
+			return;
+		}
+
+		GrayImage8 transformedImage = ImageTransformationFilter.getTransformedImage(inImg, inversionTF);
 
-		ImageJUtility.showNewImage(transformedImage, width, height, "Inverted");
+		ImageJUtility.showNewImage(transformedImage, "Inverted");
 
 	} //run
 
@@ -9,36 +9,41 @@ import ij.process.ImageProcessor;
  */
 public class MeanUserRadius_ implements PlugInFilter {
 
+	private int tgtRadius = 4;
+
 	public int setup(String arg, ImagePlus imp) {
 		if (arg.equals("about"))
 			{showAbout(); return DONE;}
-		return DOES_8G+DOES_STACKS+SUPPORTS_MASKING;
-	} //setup
 
+		// asked once, shared by all slices of a stack
+		if (ImageJUtility.useMacroOptions()) {
+			// batch runs pass "radius=..." as macro option
+			tgtRadius = (int) ImageJUtility.getMacroParameter("radius", tgtRadius);
+		} else {
+			GenericDialog gd = new GenericDialog("User input");
+			gd.addNumericField("Radius", tgtRadius, 0);
+			gd.showDialog();
 
-	public void run(ImageProcessor ip) {
-		byte[] pixels = (byte[])ip.getPixels();
-		int width = ip.getWidth();
-		int height = ip.getHeight();
-		int tgtRadius = 4;
-
-		GenericDialog gd = new GenericDialog("User input");
-		gd.addNumericField("Radius", tgtRadius, 0);
-		gd.showDialog();
+			if (gd.wasCanceled()) {
+				return DONE;
+			}
 
-		if (gd.wasCanceled()) {
-			return;
+			tgtRadius = (int) gd.getNextNumber();
 		}
 
-		tgtRadius = (int) gd.getNextNumber();
+		return DOES_8G+DOES_STACKS+SUPPORTS_MASKING;
+	} //setup
 
-		int[][] ints = ImageJUtility.convertFrom1DByteArr(pixels, width, height);
-		double[][] doubles = ImageJUtility.convertToDoubleArr2D(ints, width, height);
 
+	public void run(ImageProcessor ip) {
+		GrayImage8 inImg = GrayImage8.wrap(ip);
+		DoubleImage doubles = ImageJUtility.toDoubleImage(inImg);
+
+		// constant kernel: ConvolutionFilter uses running sums, same cost for every radius
 		double[][] meanMask = ConvolutionFilter.getMeanMask(tgtRadius);
-		double[][] convolved = ConvolutionFilter.convolveDouble(doubles, width, height, meanMask, tgtRadius);
+		DoubleImage convolved = ConvolutionFilter.convolveDoubleParallel(doubles, meanMask, tgtRadius);
 
-		ImageJUtility.showNewImage(convolved, width, height, "Convolved");
+		ImageJUtility.showNewImage(convolved, "Convolved");
 
  	} //run
 
@@ -0,0 +1,74 @@
+import ij.Prefs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Utility class for splitting image work into independent bands (rows, columns, candidates, ...) that run on a
+ * shared ForkJoinPool. The thread count follows Edit > Options > Memory & Threads (ij.Prefs).
+ */
+public class ParallelUtility {
+
+    // bands per thread, a few more than threads so that uneven bands balance out
+    private static final int BANDS_PER_THREAD = 4;
+
+    private static ForkJoinPool pool = null;
+
+    /**
+     * work on the half-open range [from;to)
+     */
+    public interface RangeTask {
+        void run(int from, int to);
+    }
+
+    /**
+     * @return number of worker threads configured in ImageJ
+     */
+    public static int getThreadCount() {
+        return Math.max(1, Prefs.getThreads());
+    }
+
+    /**
+     * @return shared pool, replaced if the ImageJ thread setting changed
+     */
+    public static synchronized ForkJoinPool getPool() {
+        int threads = getThreadCount();
+        if (pool == null || pool.getParallelism() != threads) {
+            // no shutdown: concurrent callers may still submit to the old pool, its daemon workers finish their
+            // bands and time out once idle
+            pool = new ForkJoinPool(threads);
+        }
+        return pool;
+    }
+
+    /**
+     * splits [0;count) into bands and runs them, in parallel if requested. Every index is processed by exactly one
+     * task call, so tasks that only write their own indices give the same result for any band layout.
+     *
+     * @param count    number of indices, e.g. image rows
+     * @param parallel false runs the task once on the whole range in the calling thread
+     * @param task     the work per band
+     */
+    public static void forEachBand(int count, boolean parallel, RangeTask task) {
+        int threads = getThreadCount();
+        if (!parallel || threads == 1 || count < 2) {
+            task.run(0, count);
+            return;
+        }
+
+        int bandCount = Math.min(count, threads * BANDS_PER_THREAD);
+        ForkJoinPool forkJoinPool = getPool();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(bandCount);
+        for (int band = 0; band < bandCount; band++) {
+            int from = (int) ((long) count * band / bandCount);
+            int to = (int) ((long) count * (band + 1) / bandCount);
+            tasks.add(forkJoinPool.submit(() -> task.run(from, to)));
+        }
+        for (ForkJoinTask<?> t : tasks) {
+            t.join();
+        }
+    }
+
+}
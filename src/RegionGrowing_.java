@@ -6,9 +6,8 @@ import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
 
 import java.awt.*;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Deque;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -20,7 +19,10 @@ public class RegionGrowing_ implements PlugInFilter {
     public static final int BG_VAL = 0;
     public static final int UNPROCESSED_VAL = -1;
 
+    private static final String[] CONNECTIVITIES = {"8", "4"};
+
     private ImagePlus imp = null;
+    private boolean eightConnected = true;
 
     public int setup(String arg, ImagePlus imp) {
         if (arg.equals("about")) {
@@ -30,6 +32,20 @@ public class RegionGrowing_ implements PlugInFilter {
 
         this.imp = imp;
 
+        String connectivity = CONNECTIVITIES[0];
+        if (ImageJUtility.useMacroOptions()) {
+            connectivity = ImageJUtility.getMacroParameter("connectivity", connectivity);
+        } else {
+            GenericDialog gd = new GenericDialog("User setup");
+            gd.addChoice("Connectivity", CONNECTIVITIES, connectivity);
+            gd.showDialog();
+            if (gd.wasCanceled()) {
+                return DONE;
+            }
+            connectivity = gd.getNextChoice();
+        }
+        eightConnected = connectivity.equals("8");
+
         return DOES_8G + DOES_STACKS + SUPPORTS_MASKING + ROI_REQUIRED;
     } //setup
 
@@ -48,11 +64,100 @@ public class RegionGrowing_ implements PlugInFilter {
         return seedPositions;
     }
 
+    /**
+     * scanline flood fill: a popped seed is extended to the maximal horizontal span of fillable pixels, which is
+     * filled at once. The rows above and below are then scanned along the span (one pixel wider on both sides for
+     * 8-connectivity) and one seed is pushed per run of fillable pixels. Seeds are pixel indices on a primitive int
+     * stack, so no objects are allocated per pixel. Fills the same pixels as growing pixel by pixel.
+     *
+     * @param inImg          input image
+     * @param outImg         output image of the same size, filled pixels get FG_VAL, must be 0 elsewhere
+     * @param seeds          seed positions, seeds outside of the threshold interval are ignored
+     * @param lowerThresh    lowest intensity of the region
+     * @param upperThresh    highest intensity of the region
+     * @param eightConnected true for 8-connectivity, false for 4-connectivity
+     * @return number of filled pixels
+     */
+    public static int fillRegion(GrayImage8 inImg, GrayImage8 outImg, List<Point> seeds, int lowerThresh,
+                                 int upperThresh, boolean eightConnected) {
+        int width = inImg.width;
+        int height = inImg.height;
+        byte[] in = inImg.pixels;
+        byte[] out = outImg.pixels;
+        byte fg = (byte) FG_VAL;
+        int diagonal = eightConnected ? 1 : 0;
+
+        int[] stack = new int[64];
+        int stackSize = 0;
+        for (Point p : seeds) {
+            if (stackSize == stack.length) {
+                stack = Arrays.copyOf(stack, 2 * stack.length);
+            }
+            stack[stackSize++] = p.y * width + p.x;
+        }
+
+        int fgCount = 0;
+        while (stackSize > 0) {
+            int seed = stack[--stackSize];
+            int y = seed / width;
+            int x = seed % width;
+            int rowIdx = y * inImg.stride;
+            int outRowIdx = y * outImg.stride;
+            int val = in[rowIdx + x] & 0xFF;
+            if (out[outRowIdx + x] == fg || val < lowerThresh || val > upperThresh) {
+                continue;
+            }
+
+            // maximal span [left;right] through the seed
+            int left = x;
+            while (left > 0 && isFillable(in[rowIdx + left - 1], out[outRowIdx + left - 1], lowerThresh,
+                    upperThresh)) {
+                left--;
+            }
+            int right = x;
+            while (right < width - 1 && isFillable(in[rowIdx + right + 1], out[outRowIdx + right + 1], lowerThresh,
+                    upperThresh)) {
+                right++;
+            }
+            Arrays.fill(out, outRowIdx + left, outRowIdx + right + 1, fg);
+            fgCount += right - left + 1;
+
+            int scanFrom = Math.max(0, left - diagonal);
+            int scanTo = Math.min(width - 1, right + diagonal);
+            for (int nbY = y - 1; nbY <= y + 1; nbY += 2) {
+                if (nbY < 0 || nbY >= height) {
+                    continue;
+                }
+                int nbRowIdx = nbY * inImg.stride;
+                int nbOutRowIdx = nbY * outImg.stride;
+                boolean inRun = false;
+                for (int nbX = scanFrom; nbX <= scanTo; nbX++) {
+                    boolean fillable = isFillable(in[nbRowIdx + nbX], out[nbOutRowIdx + nbX], lowerThresh,
+                            upperThresh);
+                    if (fillable && !inRun) {
+                        if (stackSize == stack.length) {
+                            stack = Arrays.copyOf(stack, 2 * stack.length);
+                        }
+                        stack[stackSize++] = nbY * width + nbX;
+                    }
+                    inRun = fillable;
+                }
+            }
+        }
+
+        return fgCount;
+    }
+
+    private static boolean isFillable(byte inVal, byte outVal, int lowerThresh, int upperThresh) {
+        int val = inVal & 0xFF;
+        return outVal == 0 && val >= lowerThresh && val <= upperThresh;
+    }
+
     public void run(ImageProcessor ip) {
-        byte[] pixels = (byte[]) ip.getPixels();
-        int width = ip.getWidth();
-        int height = ip.getHeight();
-        int[][] inDataArrInt = ImageJUtility.convertFrom1DByteArr(pixels, width, height);
+        // zero-copy view of the slice
+        GrayImage8 inImg = GrayImage8.wrap(ip);
+        int width = inImg.width;
+        int height = inImg.height;
 
         int lowerThresh = 100;
         int upperThresh = 150;
@@ -70,70 +175,20 @@ public class RegionGrowing_ implements PlugInFilter {
         lowerThresh = (int) gd.getNextNumber();
         upperThresh = (int) gd.getNextNumber();
 */
-        int[][] segmentedImg = new int[width][height];
-
-        for(int x = 0; x < width; x++){
-            for(int y = 0; y < height; y++){
-                segmentedImg[x][y] = UNPROCESSED_VAL;
-            }
-        }
-
         List<Point> seedPoints = getSeedPoints();
 
         if(!seedPoints.isEmpty()){
             Point seedPos = seedPoints.get(0);
-            int initVal = inDataArrInt[seedPos.x][seedPos.y];
+            int initVal = inImg.get(seedPos.x, seedPos.y);
             double tolerance = (256 * 0.1) / 2.0;
             lowerThresh = Math.max(0, (int)(initVal - tolerance + 0.5));
             upperThresh = Math.min(255, (int) (initVal + tolerance +0.5));
         }
-        Deque<Point> processingStack = new ArrayDeque<>();
 
-        int fgCount = 0;
-        for(Point p : seedPoints) {
-            int actVal = inDataArrInt[p.x][p.y];
-            if(segmentedImg[p.x][p.y] == UNPROCESSED_VAL){
-                if(actVal >= lowerThresh && actVal <= upperThresh) {
-                    segmentedImg[p.x][p.y] = FG_VAL;
-                    processingStack.push(p);
-                    fgCount++;
-                } else {
-                    segmentedImg[p.x][p.y] = BG_VAL;
-                }
-            }
-        }
+        GrayImage8 segmentedImg = new GrayImage8(width, height);
+        fillRegion(inImg, segmentedImg, seedPoints, lowerThresh, upperThresh, eightConnected);
 
-        while(!processingStack.isEmpty()){
-            Point actPos = processingStack.pop();
-
-            for(int xOffset = -1; xOffset <= 1; xOffset++){
-                for(int yOffset = -1; yOffset <= 1; yOffset++){
-                    int nbX = actPos.x + xOffset;
-                    int nbY = actPos.y + yOffset;
-
-                    if(nbX >= 0 && nbX < width && nbY >= 0 && nbY < height) {
-                        int actVal = inDataArrInt[nbX][nbY];
-                        if(segmentedImg[nbX][nbY] == UNPROCESSED_VAL) {
-                            if(actVal >= lowerThresh && actVal <= upperThresh){
-                                segmentedImg[nbX][nbY] = FG_VAL;
-                                processingStack.push(new Point(nbX, nbY));
-                                fgCount++;
-                            } else {
-                                segmentedImg[nbX][nbY] = BG_VAL;
-                            }
-                        }
-                    }
-                }
-            }
-        }
-
-        for(int x = 0; x < width; x++){
-            for(int y = 0; y < height; y++){
-                if(segmentedImg[x][y] == UNPROCESSED_VAL)
-                    segmentedImg[x][y] = 0;
-            }
-        }
-        ImageJUtility.showNewImage(segmentedImg, width,height,"Region Growing");
+        ImageJUtility.showNewImage(segmentedImg, "Region Growing");
     } //run
 
     void showAbout() {
@@ -0,0 +1,153 @@
+import java.util.Arrays;
+
+/**
+ * Per label statistics of a flat, row-major label image, gathered in one pass into primitive arrays indexed by label
+ * (index 0, the background, is not counted): area, bounding box, centroid, RGB sums, perimeter and the equivalent
+ * diameter. The parallel variant accumulates every band of rows into its own partial arrays and adds them up at the
+ * end; all sums are integers, so the result does not depend on the band layout.
+ */
+public class RegionStatistics {
+
+    public final int count;
+
+    public final int[] area;
+    public final int[] minX;
+    public final int[] maxX;
+    public final int[] minY;
+    public final int[] maxY;
+
+    // coordinate and channel sums, divide by area for the centroid and mean color
+    public final long[] sumX;
+    public final long[] sumY;
+    public final long[] sumRed;
+    public final long[] sumGreen;
+    public final long[] sumBlue;
+
+    /**
+     * number of pixel edges between the region and other labels or the image border (crack length)
+     */
+    public final int[] perimeter;
+
+    private RegionStatistics(int count) {
+        this.count = count;
+        area = new int[count + 1];
+        minX = new int[count + 1];
+        maxX = new int[count + 1];
+        minY = new int[count + 1];
+        maxY = new int[count + 1];
+        sumX = new long[count + 1];
+        sumY = new long[count + 1];
+        sumRed = new long[count + 1];
+        sumGreen = new long[count + 1];
+        sumBlue = new long[count + 1];
+        perimeter = new int[count + 1];
+        Arrays.fill(minX, Integer.MAX_VALUE);
+        Arrays.fill(minY, Integer.MAX_VALUE);
+        Arrays.fill(maxX, -1);
+        Arrays.fill(maxY, -1);
+    }
+
+    /**
+     * @param labels   label image, row-major, 0 for background
+     * @param width    The width of the image.
+     * @param height   The height of the image.
+     * @param rgb      packed RGB pixels of the same size (ColorProcessor layout) for the color sums, may be null
+     * @param parallel true to accumulate bands of rows in ParallelUtility's pool
+     * @return statistics for the labels 1..max label
+     */
+    public static RegionStatistics compute(int[] labels, int width, int height, int[] rgb, boolean parallel) {
+        int maxLabel = 0;
+        for (int label : labels) {
+            maxLabel = Math.max(maxLabel, label);
+        }
+        int count = maxLabel;
+
+        RegionStatistics total = new RegionStatistics(count);
+        ParallelUtility.forEachBand(height, parallel, (from, to) -> {
+            RegionStatistics partial = parallel ? new RegionStatistics(count) : total;
+            partial.accumulate(labels, width, height, rgb, from, to);
+            if (partial != total) {
+                synchronized (total) {
+                    total.add(partial);
+                }
+            }
+        });
+        return total;
+    }
+
+    private void accumulate(int[] labels, int width, int height, int[] rgb, int fromY, int toY) {
+        for (int y = fromY; y < toY; y++) {
+            int rowIdx = y * width;
+            for (int x = 0; x < width; x++) {
+                int label = labels[rowIdx + x];
+
+                // edge to the right and below is counted for both sides, left and top image border here
+                int right = x < width - 1 ? labels[rowIdx + x + 1] : 0;
+                int below = y < height - 1 ? labels[rowIdx + width + x] : 0;
+                if (right != label) {
+                    perimeter[label]++;
+                    perimeter[right]++;
+                }
+                if (below != label) {
+                    perimeter[label]++;
+                    perimeter[below]++;
+                }
+                if (label == 0) {
+                    continue;
+                }
+                if (x == 0) {
+                    perimeter[label]++;
+                }
+                if (y == 0) {
+                    perimeter[label]++;
+                }
+
+                area[label]++;
+                minX[label] = Math.min(minX[label], x);
+                maxX[label] = Math.max(maxX[label], x);
+                minY[label] = Math.min(minY[label], y);
+                maxY[label] = Math.max(maxY[label], y);
+                sumX[label] += x;
+                sumY[label] += y;
+                if (rgb != null) {
+                    int pixel = rgb[rowIdx + x];
+                    sumRed[label] += (pixel & 0xff0000) >> 16;
+                    sumGreen[label] += (pixel & 0x00ff00) >> 8;
+                    sumBlue[label] += pixel & 0x0000ff;
+                }
+            }
+        }
+    }
+
+    private void add(RegionStatistics other) {
+        for (int label = 0; label <= count; label++) {
+            area[label] += other.area[label];
+            minX[label] = Math.min(minX[label], other.minX[label]);
+            maxX[label] = Math.max(maxX[label], other.maxX[label]);
+            minY[label] = Math.min(minY[label], other.minY[label]);
+            maxY[label] = Math.max(maxY[label], other.maxY[label]);
+            sumX[label] += other.sumX[label];
+            sumY[label] += other.sumY[label];
+            sumRed[label] += other.sumRed[label];
+            sumGreen[label] += other.sumGreen[label];
+            sumBlue[label] += other.sumBlue[label];
+            perimeter[label] += other.perimeter[label];
+        }
+    }
+
+    public double getCentroidX(int label) {
+        return (double) sumX[label] / area[label];
+    }
+
+    public double getCentroidY(int label) {
+        return (double) sumY[label] / area[label];
+    }
+
+    /**
+     * @return diameter of the circle with the same area, in pixels
+     */
+    public double getEquivalentDiameter(int label) {
+        return 2.0 * Math.sqrt(area[label] / Math.PI);
+    }
+
+}
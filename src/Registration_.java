@@ -1,22 +1,169 @@
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.GenericDialog;
+import ij.measure.ResultsTable;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.DoubleAccumulator;
+
 /**
- * Simple implementation of a registration using nearest neighbor interpolation and sum of squared error distance
- * metric. (Lab 8)
+ * Rigid registration (translation and rotation) of a test image to a reference image. The search is an exhaustive
+ * grid, a coarse-to-fine pyramid, a Levenberg-Marquardt optimizer or phase correlation; the test image is resampled
+ * with nearest neighbor, bilinear or bicubic interpolation and compared by one of the SimilarityMetric costs (SSE,
+ * SAD, NCC, mutual information). Stacks are registered slice by slice. (Lab 8)
  */
 public class Registration_ implements PlugInFilter {
 
+    private static final String[] SEARCH_MODES = {"grid", "pyramid", "optimizer", "phase correlation",
+            "phase correlation + optimizer"};
+
+    // 11x11x11 grid of getRegisteredImage
+    private static final int GRID_STEPS_PER_SIDE = 5;
+    private static final double GRID_STEP = 2.0;
+
+    // the coarsest pyramid level keeps at least this many pixels per side
+    private static final int PYRAMID_MIN_SIZE = 32;
+    // candidates of the coarse grid that are refined on the finer levels
+    private static final int PYRAMID_CANDIDATES = 3;
+    // compass search moves per level, bounds the work for flat error surfaces
+    private static final int PYRAMID_MAX_MOVES = 10;
+
+    // Levenberg-Marquardt: start damping, convergence once a step is below this (pixels and degrees)
+    private static final double OPTIMIZER_INITIAL_LAMBDA = 1e-3;
+    private static final double OPTIMIZER_TOLERANCE = 1e-3;
+
+    private static final String[] INTERPOLATION_MODES = {"nearest neighbor", "bilinear", "bicubic"};
+    private static final String[] REFERENCE_MODES = {"first", "mean", "previous"};
+
+    // minimum overlap of the transformed test image with the reference (fraction of the image), out of image
+    // pixels are masked, so a small overlap could otherwise match trivially
+    private static final double MIN_OVERLAP = 0.25;
+
+    // polar magnitude spectrum for the phase correlation rotation estimate: angles over 180 degrees, radii, and the
+    // lowest frequency used (cycles per pixel)
+    private static final int POLAR_ANGLES = 512;
+    private static final int POLAR_RADII = 64;
+    private static final double POLAR_MIN_RADIUS = 0.02;
+
+    // safety distance of the unchecked interior span to the image border, in pixels
+    private static final double SPAN_MARGIN = 1e-6;
+
+    private String searchMode = "grid";
+    private double searchRange = 10.0;
+    private double angleRange = 10.0;
+    private double searchStep = 2.0;
+    private int maxIterations = 50;
+    private int interpolation = ImageProcessor.NEAREST_NEIGHBOR;
+    private String reference = "first";
+    private String metric = "SSE";
+
+    // set for stacks: all slices are registered in one run call instead of the single image demo
+    private ImagePlus stackImp = null;
+
     public int setup(String arg, ImagePlus imp) {
         if (arg.equals("about")) {
             showAbout();
             return DONE;
         }
+
+        boolean isStack = imp != null && imp.getStackSize() > 1;
+
+        if (ImageJUtility.useMacroOptions()) {
+            searchMode = ImageJUtility.getMacroParameter("search", searchMode);
+            searchRange = ImageJUtility.getMacroParameter("range", searchRange);
+            angleRange = ImageJUtility.getMacroParameter("angle", angleRange);
+            searchStep = ImageJUtility.getMacroParameter("step", searchStep);
+            maxIterations = (int) ImageJUtility.getMacroParameter("iterations", maxIterations);
+            interpolation = getInterpolationMode(ImageJUtility.getMacroParameter("interpolation",
+                    INTERPOLATION_MODES[interpolation]));
+            reference = ImageJUtility.getMacroParameter("reference", reference);
+            metric = ImageJUtility.getMacroParameter("metric", metric);
+        } else {
+            GenericDialog gd = new GenericDialog("Registration");
+            gd.addChoice("Search", SEARCH_MODES, searchMode);
+            gd.addNumericField("Range (pixels)", searchRange, 1);
+            gd.addNumericField("Angle (degrees)", angleRange, 1);
+            gd.addNumericField("Step", searchStep, 2);
+            gd.addNumericField("Iterations", maxIterations, 0);
+            gd.addChoice("Interpolation", INTERPOLATION_MODES, INTERPOLATION_MODES[interpolation]);
+            gd.addChoice("Metric", SimilarityMetric.NAMES, metric);
+            if (isStack) {
+                gd.addChoice("Reference slice", REFERENCE_MODES, reference);
+            }
+            gd.showDialog();
+
+            if (gd.wasCanceled()) {
+                return DONE;
+            }
+
+            searchMode = gd.getNextChoice();
+            searchRange = gd.getNextNumber();
+            angleRange = gd.getNextNumber();
+            searchStep = gd.getNextNumber();
+            maxIterations = (int) gd.getNextNumber();
+            interpolation = gd.getNextChoiceIndex();
+            metric = gd.getNextChoice();
+            if (isStack) {
+                reference = gd.getNextChoice();
+            }
+        }
+
+        try {
+            checkSearchParameters(searchRange, angleRange, searchStep);
+        } catch (IllegalArgumentException e) {
+            if (!ImageJUtility.isInteractive()) {
+                throw e;
+            }
+            IJ.error("Registration", e.getMessage());
+            return DONE;
+        }
+
+        if (isStack) {
+            // run is called once and registers the whole stack
+            stackImp = imp;
+            return DOES_8G;
+        }
+
         return DOES_8G + DOES_STACKS + SUPPORTS_MASKING;
     } //setup
 
+    /**
+     * the searches loop over range / step positions per side, a step of 0 would never end
+     *
+     * @throws IllegalArgumentException for searchStep <= 0 or a negative range
+     */
+    private static void checkSearchParameters(double searchRange, double angleRange, double searchStep) {
+        if (!(searchStep > 0.0)) {
+            throw new IllegalArgumentException("step must be greater than 0: " + searchStep);
+        }
+        if (!(searchRange >= 0.0)) {
+            throw new IllegalArgumentException("range must not be negative: " + searchRange);
+        }
+        if (!(angleRange >= 0.0)) {
+            throw new IllegalArgumentException("angle must not be negative: " + angleRange);
+        }
+    }
+
+    /**
+     * @param name entry of INTERPOLATION_MODES, e.g. "bilinear"
+     * @return index of the mode, equal to the ImageProcessor constant (NEAREST_NEIGHBOR, BILINEAR, BICUBIC)
+     */
+    private int getInterpolationMode(String name) {
+        for (int i = 0; i < INTERPOLATION_MODES.length; i++) {
+            if (INTERPOLATION_MODES[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("unknown interpolation: " + name);
+    }
+
     /**
      * @param xIdx   double x-image coordinate
      * @param yIdx   double y-image coordinate
@@ -87,14 +234,15 @@ public class Registration_ implements PlugInFilter {
      * @return error metric
      */
     public double getImgDiffSSE(int[][] refImg, int[][] testImg, int width, int height) {
-        double totalError = 0.0;
+        long totalError = 0;
 
+        // integer accumulation per column (contiguous in [x][y] layout), no int to double conversion per pixel
         for(int x = 0; x < width; x++) {
+            int[] refCol = refImg[x];
+            int[] testCol = testImg[x];
             for(int y = 0; y < height; y++) {
-                int val1 = refImg[x][y];
-                int val2 = testImg[x][y];
-
-                totalError += (val2-val1) * (val2-val1);
+                int diff = testCol[y] - refCol[y];
+                totalError += diff * diff;
             }
         }
 
@@ -135,8 +283,9 @@ public class Registration_ implements PlugInFilter {
         double bestR = 0.0;
         double currMinError = getImgDiffSSE(refImg, testImg, width, height);
 
-        double searchStep = 2.0;
-        int stepsPerSide = 5;
+        double searchStep = GRID_STEP;
+        int stepsPerSide = GRID_STEPS_PER_SIDE;
+        int improvements = 0;
 
         for(int x = -stepsPerSide; x <= stepsPerSide; x++){
             for(int y = -stepsPerSide; y <= stepsPerSide; y++) {
@@ -152,17 +301,1359 @@ public class Registration_ implements PlugInFilter {
                         bestTy = ty;
                         bestR = tr;
                         currMinError = imgDiffSSE;
-                        IJ.log("new best Tx=" + bestTx + " Ty=" + bestTy + " R=" + bestR);
+                        improvements++;
                     }
                 }
             }
         }
+        ImageJUtility.log("best Tx=" + bestTx + " Ty=" + bestTy + " R=" + bestR
+                + " (" + improvements + " improvements)");
 
         return transformImg(testImg, width, height, bestTx, bestTy, bestR);
     }
 
+    /**
+     * the grid of getRegisteredImage on flat images, with range, angle and step from the dialog: the defaults give
+     * its 11x11x11 candidates. The candidate errors are computed in parallel with the fused getTransformedCost,
+     * losing candidates are abandoned early. The minimum is then taken in the serial loop order, so equal errors
+     * resolve to the same candidate independent of the thread count.
+     * <p>
+     * The result intentionally differs from getRegisteredImage: that one sums the SSE over all pixels and compares
+     * out of image positions as intensity -1, which penalizes every candidate for the area it shifts out of the
+     * image. Here the metric masks those positions and normalizes by the overlap, also for SSE.
+     *
+     * @param refImg      The reference image
+     * @param testImg     the image to test with
+     * @param searchRange maximum translation in pixels (both directions)
+     * @param angleRange  maximum rotation in degrees (both directions)
+     * @param searchStep  grid step, in pixels and degrees
+     * @param metric      similarity metric prepared for refImg
+     * @param parallel    true to spread the candidates over ParallelUtility's pool
+     * @return {transX, transY, rotAngle} for transformImg
+     * @throws IllegalArgumentException for searchStep <= 0, a negative range or more than Integer.MAX_VALUE
+     *                                  candidates
+     */
+    public double[] getRegistrationParamsGrid(IntImage refImg, IntImage testImg, double searchRange,
+                                              double angleRange, double searchStep, SimilarityMetric metric,
+                                              boolean parallel) {
+        checkSearchParameters(searchRange, angleRange, searchStep);
+        int stepsX = getGridStepsPerSide(searchRange, searchStep);
+        int stepsR = getGridStepsPerSide(angleRange, searchStep);
+        long candidates = getGridSize(searchRange, angleRange, searchStep);
+        if (candidates > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("grid too large: " + candidates + " candidates");
+        }
+        double[] errors = new double[(int) candidates];
+
+        int[] rowOrder = getDecorrelatedRowOrder(refImg.height);
+        double initialError = getTransformedCost(metric, refImg, testImg, 0.0, 0.0, 0.0, Double.POSITIVE_INFINITY,
+                rowOrder);
+
+        // best error so far over all threads. Abandoned candidates report a value above it, the minimum and
+        // candidates tying with it are always evaluated completely, so the reduction below is still exact.
+        DoubleAccumulator bound = new DoubleAccumulator(Math::min, initialError);
+        ParallelUtility.forEachBand(errors.length, parallel, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                double[] params = getGridParams(i, stepsX, stepsR, searchStep);
+                errors[i] = getTransformedCost(metric, refImg, testImg, params[0], params[1], params[2], bound.get(),
+                        rowOrder);
+                bound.accumulate(errors[i]);
+            }
+        });
+
+        double[] best = {0.0, 0.0, 0.0};
+        double currMinError = initialError;
+        for (int i = 0; i < errors.length; i++) {
+            if (errors[i] < currMinError) {
+                best = getGridParams(i, stepsX, stepsR, searchStep);
+                currMinError = errors[i];
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return grid positions per side that stay within range
+     */
+    private static int getGridStepsPerSide(double range, double step) {
+        return (int) Math.min(Integer.MAX_VALUE / 2, Math.floor(range / step + 1e-9));
+    }
+
+    /**
+     * @return number of candidates of getRegistrationParamsGrid
+     */
+    private static long getGridSize(double searchRange, double angleRange, double searchStep) {
+        long sideX = 2L * getGridStepsPerSide(searchRange, searchStep) + 1;
+        long sideR = 2L * getGridStepsPerSide(angleRange, searchStep) + 1;
+        return sideX * sideX > Long.MAX_VALUE / sideR ? Long.MAX_VALUE : sideX * sideX * sideR;
+    }
+
+    /**
+     * @param candidate index in the loop order of getRegisteredImage (x outermost, rotation innermost)
+     * @param stepsX    grid positions per side in x and y
+     * @param stepsR    grid positions per side in the rotation
+     * @param step      grid step, in pixels and degrees
+     * @return {transX, transY, rotAngle}
+     */
+    private double[] getGridParams(int candidate, int stepsX, int stepsR, double step) {
+        int sideX = 2 * stepsX + 1;
+        int sideR = 2 * stepsR + 1;
+        int x = candidate / (sideX * sideR) - stepsX;
+        int y = candidate / sideR % sideX - stepsX;
+        int r = candidate % sideR - stepsR;
+        return new double[]{x * step, y * step, r * step};
+    }
+
+    /**
+     * fused transformImg and metric: the cost is accumulated while inverse mapping, no transformed image is stored.
+     * Out of image positions are masked, candidates overlapping less than MIN_OVERLAP of the image are rejected.
+     * Rows are visited in rowOrder and the pass stops as soon as the metric's lower bound exceeds bound, which for
+     * a decorrelated order happens after a few rows for most losing candidates.
+     *
+     * @param metric   similarity metric prepared for refImg
+     * @param refImg   The reference image
+     * @param testImg  the image to test with
+     * @param transX   translation in x-direction
+     * @param transY   translation in y-direction
+     * @param rotAngle rotation angle in degrees
+     * @param bound    best cost so far, Double.POSITIVE_INFINITY for a full pass
+     * @param rowOrder permutation of the rows, see getDecorrelatedRowOrder
+     * @return the metric's cost, or a value > bound if abandoned
+     */
+    public double getTransformedCost(SimilarityMetric metric, IntImage refImg, IntImage testImg, double transX,
+                                     double transY, double rotAngle, double bound, int[] rowOrder) {
+        int width = refImg.width;
+        int height = refImg.height;
+        int[] in = testImg.pixels;
+        int[] ref = refImg.pixels;
+
+        double rotAngleRad = -rotAngle * Math.PI / 180.0;
+        double cos = Math.cos(rotAngleRad);
+        double sin = Math.sin(rotAngleRad);
+
+        double widthHalf = width / 2.0;
+        double heightHalf = height / 2.0;
+
+        // one row of both images at a time, out of image positions get -1
+        double[] refRow = new double[width];
+        double[] testRow = new double[width];
+        SimilarityMetric.Accumulator accumulator = metric.newAccumulator();
+        int rows = 0;
+        for (int y : rowOrder) {
+            double posY = y - heightHalf;
+            int refIdx = y * refImg.stride;
+            for (int x = 0; x < width; x++) {
+                double posX = x - widthHalf;
+                double srcX = posX * cos + posY * sin + widthHalf - transX;
+                double srcY = -posX * sin + posY * cos + heightHalf - transY;
+
+                int xIdxInt = (int) (srcX + 0.5);
+                int yIdxInt = (int) (srcY + 0.5);
+                refRow[x] = ref[refIdx + x];
+                testRow[x] = xIdxInt >= 0 && xIdxInt < width && yIdxInt >= 0 && yIdxInt < height
+                        ? in[yIdxInt * testImg.stride + xIdxInt] : -1.0;
+            }
+            accumulator.addRow(refRow, 0, testRow, width);
+            rows++;
+            // pixels masked so far can no longer be added
+            double lowerBound = accumulator.getLowerBound(width * height - (rows * width - accumulator.getCount()));
+            if (lowerBound > bound) {
+                return lowerBound;
+            }
+        }
+
+        return accumulator.getCount() < MIN_OVERLAP * width * height ? Double.POSITIVE_INFINITY
+                : accumulator.getCost();
+    }
+
+    /**
+     * bit-reversed row order (0, h/2, h/4, 3h/4, ...): every prefix is spread over the whole image, so a partial
+     * error is a good estimate of the full one
+     *
+     * @param height number of rows
+     * @return permutation of [0;height)
+     */
+    public int[] getDecorrelatedRowOrder(int height) {
+        int bits = Integer.numberOfTrailingZeros(FFT.nextPowerOfTwo(height));
+        int[] order = new int[height];
+        int count = 0;
+        for (int i = 0; i < 1 << bits; i++) {
+            int y = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+            if (y < height) {
+                order[count++] = y;
+            }
+        }
+        return order;
+    }
+
+    // INTERPOLATION (bilinear and bicubic, incremental coordinates, rows clipped analytically)
+
+    /**
+     * transformImg with selectable interpolation. Source positions are generated incrementally, every pixel adds a
+     * constant (dx, dy) to the position of its left neighbor. Every row is clipped analytically: positions outside
+     * of the image get -1, the interior span where all interpolation taps are inside runs without bounds checks,
+     * only the few pixels along the image border in between use clamped taps.
+     *
+     * @param inImg         input image
+     * @param outImg        output image of the same size, must not be the input image
+     * @param transX        translation in x-direction
+     * @param transY        translation in y-direction
+     * @param rotAngle      rotation angle in degrees
+     * @param interpolation ImageProcessor.NEAREST_NEIGHBOR, BILINEAR or BICUBIC
+     */
+    public void transformImg(DoubleImage inImg, DoubleImage outImg, double transX, double transY, double rotAngle,
+                             int interpolation) {
+        int width = inImg.width;
+        int height = inImg.height;
+        double centerX = width / 2.0;
+        double centerY = height / 2.0;
+        if (interpolation == ImageProcessor.NEAREST_NEIGHBOR) {
+            transformImg(inImg, outImg, transX, transY, rotAngle, centerX, centerY);
+            return;
+        }
+
+        double[] in = inImg.pixels;
+        double[] out = outImg.pixels;
+        int stride = inImg.stride;
+        boolean bicubic = interpolation == ImageProcessor.BICUBIC;
+        // taps around floor(position): bilinear 0..1, bicubic -1..2
+        int tapsBefore = bicubic ? 1 : 0;
+        int tapsAfter = bicubic ? 2 : 1;
+
+        double rotAngleRad = -rotAngle * Math.PI / 180.0;
+        double cos = Math.cos(rotAngleRad);
+        double sin = Math.sin(rotAngleRad);
+        double dx = cos;
+        double dy = -sin;
+
+        for (int y = 0; y < height; y++) {
+            double posY = y - centerY;
+            // position of pixel 0 of the row, same formula as transformImg
+            double startX = -centerX * cos + posY * sin + centerX - transX;
+            double startY = centerX * sin + posY * cos + centerY - transY;
+            int outIdx = y * outImg.stride;
+
+            int[] valid = getRowSpan(startX, startY, dx, dy, 0.0, width - 1.0, 0.0, height - 1.0, width);
+            // the margin covers the rounding of the incremental positions
+            int[] interior = getRowSpan(startX, startY, dx, dy, tapsBefore + SPAN_MARGIN,
+                    width - tapsAfter - SPAN_MARGIN, tapsBefore + SPAN_MARGIN, height - tapsAfter - SPAN_MARGIN, width);
+            int interiorFrom = Math.max(interior[0], valid[0]);
+            int interiorTo = Math.max(interiorFrom, Math.min(interior[1], valid[1]));
+
+            for (int x = 0; x < valid[0]; x++) {
+                out[outIdx + x] = -1.0;
+            }
+            for (int x = valid[0]; x < interiorFrom; x++) {
+                out[outIdx + x] = getClampedValue(inImg, startX + x * dx, startY + x * dy, bicubic);
+            }
+
+            double srcX = startX + interiorFrom * dx;
+            double srcY = startY + interiorFrom * dy;
+            if (bicubic) {
+                for (int x = interiorFrom; x < interiorTo; x++) {
+                    int x0 = (int) srcX;
+                    int y0 = (int) srcY;
+                    double fx = srcX - x0;
+                    double fy = srcY - y0;
+
+                    // Catmull-Rom weights for the taps at -1, 0, 1, 2
+                    double wx0 = fx * (-0.5 + fx * (1.0 - 0.5 * fx));
+                    double wx1 = 1.0 + fx * fx * (-2.5 + 1.5 * fx);
+                    double wx2 = fx * (0.5 + fx * (2.0 - 1.5 * fx));
+                    double wx3 = fx * fx * (-0.5 + 0.5 * fx);
+
+                    double wy0 = fy * (-0.5 + fy * (1.0 - 0.5 * fy));
+                    double wy1 = 1.0 + fy * fy * (-2.5 + 1.5 * fy);
+                    double wy2 = fy * (0.5 + fy * (2.0 - 1.5 * fy));
+                    double wy3 = fy * fy * (-0.5 + 0.5 * fy);
+
+                    int idx = (y0 - 1) * stride + x0 - 1;
+                    double row0 = wx0 * in[idx] + wx1 * in[idx + 1] + wx2 * in[idx + 2] + wx3 * in[idx + 3];
+                    idx += stride;
+                    double row1 = wx0 * in[idx] + wx1 * in[idx + 1] + wx2 * in[idx + 2] + wx3 * in[idx + 3];
+                    idx += stride;
+                    double row2 = wx0 * in[idx] + wx1 * in[idx + 1] + wx2 * in[idx + 2] + wx3 * in[idx + 3];
+                    idx += stride;
+                    double row3 = wx0 * in[idx] + wx1 * in[idx + 1] + wx2 * in[idx + 2] + wx3 * in[idx + 3];
+
+                    out[outIdx + x] = wy0 * row0 + wy1 * row1 + wy2 * row2 + wy3 * row3;
+                    srcX += dx;
+                    srcY += dy;
+                }
+            } else {
+                for (int x = interiorFrom; x < interiorTo; x++) {
+                    int x0 = (int) srcX;
+                    int y0 = (int) srcY;
+                    double fx = srcX - x0;
+                    double fy = srcY - y0;
+
+                    int idx = y0 * stride + x0;
+                    double top = in[idx] + fx * (in[idx + 1] - in[idx]);
+                    double bottom = in[idx + stride] + fx * (in[idx + stride + 1] - in[idx + stride]);
+                    out[outIdx + x] = top + fy * (bottom - top);
+                    srcX += dx;
+                    srcY += dy;
+                }
+            }
+
+            for (int x = interiorTo; x < valid[1]; x++) {
+                out[outIdx + x] = getClampedValue(inImg, startX + x * dx, startY + x * dy, bicubic);
+            }
+            for (int x = valid[1]; x < width; x++) {
+                out[outIdx + x] = -1.0;
+            }
+        }
+    }
+
+    /**
+     * @return [from;to) of the pixels x in [0;count) with minX <= startX + x * dx <= maxX and
+     * minY <= startY + x * dy <= maxY, from == to if there are none
+     */
+    private int[] getRowSpan(double startX, double startY, double dx, double dy, double minX, double maxX,
+                             double minY, double maxY, int count) {
+        int[] spanX = getSpan(startX, dx, minX, maxX, count);
+        int[] spanY = getSpan(startY, dy, minY, maxY, count);
+        int from = Math.max(spanX[0], spanY[0]);
+        int to = Math.max(from, Math.min(spanX[1], spanY[1]));
+        return new int[]{from, to};
+    }
+
+    private int[] getSpan(double start, double step, double min, double max, int count) {
+        if (step == 0.0) {
+            return start >= min && start <= max ? new int[]{0, count} : new int[]{0, 0};
+        }
+        double a = (min - start) / step;
+        double b = (max - start) / step;
+        double from = Math.ceil(Math.min(a, b));
+        double to = Math.floor(Math.max(a, b)) + 1.0;
+        int fromInt = (int) Math.max(0.0, Math.min(count, from));
+        int toInt = (int) Math.max(fromInt, Math.min(count, to));
+        return new int[]{fromInt, toInt};
+    }
+
+    /**
+     * interpolation close to the image border, taps outside of the image are clamped to the nearest border pixel
+     */
+    private double getClampedValue(DoubleImage img, double xIdx, double yIdx, boolean bicubic) {
+        int x0 = (int) Math.floor(xIdx);
+        int y0 = (int) Math.floor(yIdx);
+        double fx = xIdx - x0;
+        double fy = yIdx - y0;
+        int from = bicubic ? -1 : 0;
+        int to = bicubic ? 2 : 1;
+
+        double sum = 0.0;
+        for (int j = from; j <= to; j++) {
+            int yIdxInt = Math.max(0, Math.min(img.height - 1, y0 + j));
+            double wy = bicubic ? getCubicWeight(fy - j) : 1.0 - Math.abs(fy - j);
+            for (int i = from; i <= to; i++) {
+                int xIdxInt = Math.max(0, Math.min(img.width - 1, x0 + i));
+                double wx = bicubic ? getCubicWeight(fx - i) : 1.0 - Math.abs(fx - i);
+                sum += wx * wy * img.pixels[yIdxInt * img.stride + xIdxInt];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @param t distance to the tap
+     * @return Catmull-Rom (Keys, a = -0.5) weight
+     */
+    private double getCubicWeight(double t) {
+        t = Math.abs(t);
+        if (t <= 1.0) {
+            return (1.5 * t - 2.5) * t * t + 1.0;
+        }
+        if (t < 2.0) {
+            return ((-0.5 * t + 2.5) * t - 4.0) * t + 2.0;
+        }
+        return 0.0;
+    }
+
+    // PYRAMID SEARCH (coarse grid on a downsampled level, refined level by level)
+
+    /**
+     * @param width     the width of the full resolution image
+     * @param height    the height of the full resolution image
+     * @param range     smaller one of translation and angle range
+     * @param searchStep parameter step at full resolution
+     * @return number of pyramid levels: the coarsest level keeps at least PYRAMID_MIN_SIZE pixels per side and its
+     * step (searchStep * 2^level) does not exceed the search range
+     */
+    public int getPyramidLevels(int width, int height, double range, double searchStep) {
+        int levels = 1;
+        while (Math.min(width, height) >> levels >= PYRAMID_MIN_SIZE && searchStep * (1 << levels) <= range) {
+            levels++;
+        }
+        return levels;
+    }
+
+    /**
+     * Gaussian pyramid: every level is the previous one smoothed with a 5x5 binomial kernel and subsampled by 2,
+     * so pixel (x, y) of level l sits at (x * 2^l, y * 2^l) of level 0.
+     *
+     * @param img    full resolution image, becomes level 0
+     * @param levels number of levels
+     * @return the levels, finest first
+     */
+    public DoubleImage[] getGaussianPyramid(DoubleImage img, int levels) {
+        double[] binomial = {1.0, 4.0, 6.0, 4.0, 1.0};
+        double[][] kernel = new double[5][5];
+        for (int x = 0; x < 5; x++) {
+            for (int y = 0; y < 5; y++) {
+                kernel[x][y] = binomial[x] * binomial[y] / 256.0;
+            }
+        }
+
+        DoubleImage[] pyramid = new DoubleImage[levels];
+        pyramid[0] = img;
+        for (int level = 1; level < levels; level++) {
+            DoubleImage finer = pyramid[level - 1];
+            // normalized, so the image border is not darkened
+            DoubleImage smoothed = new DoubleImage(finer.width, finer.height);
+            ConvolutionFilter.convolveDoubleNorm(finer, smoothed, kernel, 2, true);
+
+            DoubleImage coarser = new DoubleImage((finer.width + 1) / 2, (finer.height + 1) / 2);
+            for (int y = 0; y < coarser.height; y++) {
+                int inIdx = 2 * y * smoothed.stride;
+                int outIdx = y * coarser.stride;
+                for (int x = 0; x < coarser.width; x++) {
+                    coarser.pixels[outIdx + x] = smoothed.pixels[inIdx + 2 * x];
+                }
+            }
+            pyramid[level] = coarser;
+        }
+        return pyramid;
+    }
+
+    /**
+     * flat variant of transformImg with an explicit rotation center, used on the pyramid levels. Same nearest
+     * neighbor rounding as getNNinterpolatedValue, out of image positions get -1.
+     *
+     * @param inImg    input image
+     * @param outImg   output image of the same size, must not be the input image
+     * @param transX   translation in x-direction
+     * @param transY   translation in y-direction
+     * @param rotAngle rotation angle in degrees
+     * @param centerX  rotation center x
+     * @param centerY  rotation center y
+     */
+    public void transformImg(DoubleImage inImg, DoubleImage outImg, double transX, double transY, double rotAngle,
+                             double centerX, double centerY) {
+        int width = inImg.width;
+        int height = inImg.height;
+        double[] in = inImg.pixels;
+        double[] out = outImg.pixels;
+
+        double rotAngleRad = -rotAngle * Math.PI / 180.0;
+        double cos = Math.cos(rotAngleRad);
+        double sin = Math.sin(rotAngleRad);
+
+        for (int y = 0; y < height; y++) {
+            double posY = y - centerY;
+            int outIdx = y * outImg.stride;
+            for (int x = 0; x < width; x++) {
+                double posX = x - centerX;
+                double srcX = posX * cos + posY * sin + centerX - transX;
+                double srcY = -posX * sin + posY * cos + centerY - transY;
+
+                int xIdxInt = (int) (srcX + 0.5);
+                int yIdxInt = (int) (srcY + 0.5);
+                if (xIdxInt >= 0 && xIdxInt < width && yIdxInt >= 0 && yIdxInt < height) {
+                    out[outIdx + x] = in[yIdxInt * inImg.stride + xIdxInt];
+                } else {
+                    out[outIdx + x] = -1.0;
+                }
+            }
+        }
+    }
+
+    /**
+     * coarse-to-fine registration: exhaustive grid on the coarsest pyramid level with step searchStep * 2^level,
+     * the best PYRAMID_CANDIDATES are refined by a compass search on every finer level with half the step of the
+     * level above. Only the best candidate goes on to full resolution, where the final step is searchStep / 2.
+     *
+     * @param refImg      The reference image
+     * @param testImg     the image to test with
+     * @param searchRange maximum translation in pixels (both directions)
+     * @param angleRange  maximum rotation in degrees (both directions)
+     * @param searchStep  grid step at full resolution, in pixels and degrees
+     * @param metric      similarity metric prepared for refImg
+     * @return {transX, transY, rotAngle} for transformImg
+     * @throws IllegalArgumentException for searchStep <= 0 or a negative range
+     */
+    public double[] getRegistrationParamsPyramid(DoubleImage refImg, DoubleImage testImg, double searchRange,
+                                                 double angleRange, double searchStep, SimilarityMetric metric) {
+        int levels = getPyramidLevels(refImg.width, refImg.height, Math.min(searchRange, angleRange), searchStep);
+        return getRegistrationParamsPyramid(getGaussianPyramid(refImg, levels), testImg, searchRange, angleRange,
+                searchStep, metric);
+    }
+
+    /**
+     * getRegistrationParamsPyramid with a precomputed reference pyramid, e.g. shared by all slices of a stack
+     *
+     * @param refPyramid  Gaussian pyramid of the reference image, its length sets the number of levels
+     * @param testImg     the image to test with
+     * @param searchRange maximum translation in pixels (both directions)
+     * @param angleRange  maximum rotation in degrees (both directions)
+     * @param searchStep  grid step at full resolution, in pixels and degrees
+     * @param metric      similarity metric prepared for the reference, the blurred levels keep its mean
+     * @return {transX, transY, rotAngle} for transformImg
+     * @throws IllegalArgumentException for searchStep <= 0 or a negative range
+     */
+    public double[] getRegistrationParamsPyramid(DoubleImage[] refPyramid, DoubleImage testImg, double searchRange,
+                                                 double angleRange, double searchStep, SimilarityMetric metric) {
+        checkSearchParameters(searchRange, angleRange, searchStep);
+        int levels = refPyramid.length;
+        DoubleImage[] testPyramid = getGaussianPyramid(testImg, levels);
+        PyramidSearch search = new PyramidSearch(refPyramid, testPyramid, searchRange, angleRange, metric);
+
+        // exhaustive grid on the coarsest level
+        int coarsest = levels - 1;
+        double step = searchStep * (1 << coarsest);
+        int stepsX = (int) Math.ceil(searchRange / step - 1e-9);
+        int stepsR = (int) Math.ceil(angleRange / step - 1e-9);
+        List<double[]> candidates = new ArrayList<>();
+        for (int x = -stepsX; x <= stepsX; x++) {
+            for (int y = -stepsX; y <= stepsX; y++) {
+                for (int r = -stepsR; r <= stepsR; r++) {
+                    // only candidates better than the current PYRAMID_CANDIDATES best need an exact error
+                    double bound = candidates.size() < PYRAMID_CANDIDATES ? Double.POSITIVE_INFINITY
+                            : candidates.get(PYRAMID_CANDIDATES - 1)[3];
+                    double[] candidate = search.evaluate(coarsest, x * step, y * step, r * step, bound);
+                    if (candidate[3] <= bound) {
+                        candidates.add(candidate);
+                        candidates = search.getBest(candidates, PYRAMID_CANDIDATES);
+                    }
+                }
+            }
+        }
+
+        for (int level = coarsest - 1; level >= 1; level--) {
+            step /= 2.0;
+            List<double[]> refined = new ArrayList<>();
+            for (double[] candidate : candidates) {
+                refined.add(search.refine(level, candidate, step));
+            }
+            candidates = search.getBest(refined, PYRAMID_CANDIDATES);
+        }
+        // full resolution is the expensive level: the best candidate is brought to searchStep one level above,
+        // then only needs a short compass search with the final step
+        double[] best = candidates.get(0);
+        if (coarsest > 0) {
+            best = search.refine(1, best, searchStep);
+        }
+        best = search.refine(0, best, searchStep / 2.0);
+
+        ImageJUtility.log("pyramid registration: " + levels + " levels, work of " + String.format("%.1f", search.work)
+                + " full resolution passes (grid search: " + getGridSize(searchRange, angleRange, searchStep) + ")");
+        return new double[]{best[0], best[1], best[2]};
+    }
+
+    /**
+     * evaluations on the pyramid levels, candidates are {transX, transY, rotAngle, error} in full resolution units
+     */
+    private class PyramidSearch {
+        private final DoubleImage[] refPyramid;
+        private final DoubleImage[] testPyramid;
+        private final SimilarityMetric metric;
+        private final int[][] rowOrder;
+        private final double searchRange;
+        private final double angleRange;
+        private final double centerX;
+        private final double centerY;
+
+        private final Map<String, double[]> evaluated = new HashMap<>();
+
+        // evaluated pixels in units of one full resolution image
+        private double work = 0.0;
+
+        PyramidSearch(DoubleImage[] refPyramid, DoubleImage[] testPyramid, double searchRange, double angleRange,
+                      SimilarityMetric metric) {
+            this.refPyramid = refPyramid;
+            this.testPyramid = testPyramid;
+            this.metric = metric;
+            this.searchRange = searchRange;
+            this.angleRange = angleRange;
+            this.centerX = refPyramid[0].width / 2.0;
+            this.centerY = refPyramid[0].height / 2.0;
+            rowOrder = new int[refPyramid.length][];
+            for (int level = 0; level < refPyramid.length; level++) {
+                rowOrder[level] = getDecorrelatedRowOrder(refPyramid[level].height);
+            }
+        }
+
+        double[] evaluate(int level, double transX, double transY, double rotAngle) {
+            return evaluate(level, transX, transY, rotAngle, Double.POSITIVE_INFINITY);
+        }
+
+        /**
+         * @param bound the evaluation stops once the error exceeds this, the returned error is then only a lower
+         *              bound (> bound) and is not cached
+         */
+        double[] evaluate(int level, double transX, double transY, double rotAngle, double bound) {
+            transX = Math.max(-searchRange, Math.min(searchRange, transX));
+            transY = Math.max(-searchRange, Math.min(searchRange, transY));
+            rotAngle = Math.max(-angleRange, Math.min(angleRange, rotAngle));
+
+            // compass moves come back to already evaluated positions
+            String key = level + " " + transX + " " + transY + " " + rotAngle;
+            double[] known = evaluated.get(key);
+            if (known != null) {
+                return known;
+            }
+
+            double error = getTransformedCost(level, transX, transY, rotAngle, bound);
+            double[] candidate = {transX, transY, rotAngle, error};
+            if (error <= bound) {
+                evaluated.put(key, candidate);
+            }
+            return candidate;
+        }
+
+        /**
+         * fused transformImg and metric on one level, rows in decorrelated order with early termination, out of
+         * image positions masked
+         */
+        private double getTransformedCost(int level, double transX, double transY, double rotAngle, double bound) {
+            DoubleImage refImg = refPyramid[level];
+            DoubleImage testImg = testPyramid[level];
+            int width = refImg.width;
+            int height = refImg.height;
+            double[] in = testImg.pixels;
+
+            // translation and rotation center scale with the level, the angle does not
+            double scale = 1 << level;
+            double tX = transX / scale;
+            double tY = transY / scale;
+            double cX = centerX / scale;
+            double cY = centerY / scale;
+            double rotAngleRad = -rotAngle * Math.PI / 180.0;
+            double cos = Math.cos(rotAngleRad);
+            double sin = Math.sin(rotAngleRad);
+
+            double[] testRow = new double[width];
+            SimilarityMetric.Accumulator accumulator = metric.newAccumulator();
+            double lowerBound = Double.NEGATIVE_INFINITY;
+            int rows = 0;
+            for (int y : rowOrder[level]) {
+                double posY = y - cY;
+                for (int x = 0; x < width; x++) {
+                    double posX = x - cX;
+                    double srcX = posX * cos + posY * sin + cX - tX;
+                    double srcY = -posX * sin + posY * cos + cY - tY;
+
+                    int xIdxInt = (int) (srcX + 0.5);
+                    int yIdxInt = (int) (srcY + 0.5);
+                    testRow[x] = xIdxInt >= 0 && xIdxInt < width && yIdxInt >= 0 && yIdxInt < height
+                            ? in[yIdxInt * testImg.stride + xIdxInt] : -1.0;
+                }
+                accumulator.addRow(refImg.pixels, y * refImg.stride, testRow, width);
+                rows++;
+                lowerBound = accumulator.getLowerBound(width * height - (rows * width - accumulator.getCount()));
+                if (lowerBound > bound) {
+                    break;
+                }
+            }
+
+            work += (double) width * rows / (refPyramid[0].width * refPyramid[0].height);
+            if (lowerBound > bound) {
+                return lowerBound;
+            }
+            return accumulator.getCount() < MIN_OVERLAP * width * height ? Double.POSITIVE_INFINITY
+                    : accumulator.getCost();
+        }
+
+        /**
+         * compass search: tries +-step on every parameter, moves to the best improvement until none is left
+         */
+        double[] refine(int level, double[] candidate, double step) {
+            double[] best = evaluate(level, candidate[0], candidate[1], candidate[2]);
+            for (int move = 0; move < PYRAMID_MAX_MOVES; move++) {
+                double[] bestNeighbor = best;
+                for (int param = 0; param < 3; param++) {
+                    for (int sign = -1; sign <= 1; sign += 2) {
+                        double[] params = {best[0], best[1], best[2]};
+                        params[param] += sign * step;
+                        double[] neighbor = evaluate(level, params[0], params[1], params[2], bestNeighbor[3]);
+                        if (neighbor[3] < bestNeighbor[3]) {
+                            bestNeighbor = neighbor;
+                        }
+                    }
+                }
+                if (bestNeighbor == best) {
+                    break;
+                }
+                best = bestNeighbor;
+            }
+            return best;
+        }
+
+        /**
+         * @return the count lowest error candidates, equal errors keep their order, duplicates are dropped
+         */
+        List<double[]> getBest(List<double[]> candidates, int count) {
+            List<double[]> sorted = new ArrayList<>(candidates);
+            sorted.sort(Comparator.comparingDouble(c -> c[3]));
+            List<double[]> best = new ArrayList<>();
+            for (double[] candidate : sorted) {
+                boolean duplicate = false;
+                for (double[] b : best) {
+                    duplicate |= b[0] == candidate[0] && b[1] == candidate[1] && b[2] == candidate[2];
+                }
+                if (!duplicate) {
+                    best.add(candidate);
+                    if (best.size() == count) {
+                        break;
+                    }
+                }
+            }
+            return best;
+        }
+    }
+
+    // ITERATIVE OPTIMIZER (Levenberg-Marquardt on bilinear interpolated images, coarse-to-fine)
+
+    /**
+     * central difference gradients, one-sided at the image border
+     *
+     * @param img input image
+     * @return {d/dx, d/dy}
+     */
+    public DoubleImage[] getGradientImages(DoubleImage img) {
+        int width = img.width;
+        int height = img.height;
+        double[] in = img.pixels;
+        DoubleImage gradX = new DoubleImage(width, height);
+        DoubleImage gradY = new DoubleImage(width, height);
+
+        for (int y = 0; y < height; y++) {
+            int idx = y * img.stride;
+            int up = Math.max(y - 1, 0) * img.stride;
+            int down = Math.min(y + 1, height - 1) * img.stride;
+            double yDist = Math.min(y + 1, height - 1) - Math.max(y - 1, 0);
+            for (int x = 0; x < width; x++) {
+                int left = Math.max(x - 1, 0);
+                int right = Math.min(x + 1, width - 1);
+                double xDist = right - left;
+                gradX.pixels[y * width + x] = xDist > 0 ? (in[idx + right] - in[idx + left]) / xDist : 0.0;
+                gradY.pixels[y * width + x] = yDist > 0 ? (in[down + x] - in[up + x]) / yDist : 0.0;
+            }
+        }
+
+        return new DoubleImage[]{gradX, gradY};
+    }
+
+    /**
+     * Levenberg-Marquardt minimization of the SSE between refImg and the bilinear interpolated, transformed
+     * testImg, with analytic derivatives from the image gradients. Runs coarse-to-fine on a Gaussian pyramid, so
+     * translations up to searchRange converge from the initial parameters. Pixels mapped outside of testImg are left
+     * out of the error instead of counting as -1.
+     *
+     * @param refImg        The reference image
+     * @param testImg       the image to test with
+     * @param initialParams start {transX, transY, rotAngle}, e.g. {0, 0, 0} or the result of a coarse search
+     * @param searchRange   expected maximum translation in pixels, sets the number of pyramid levels
+     * @param maxIterations iteration budget per pyramid level
+     * @return {transX, transY, rotAngle} for transformImg
+     */
+    public double[] getRegistrationParamsOptimized(DoubleImage refImg, DoubleImage testImg, double[] initialParams,
+                                                   double searchRange, int maxIterations) {
+        // about one pixel of translation left on the coarsest level
+        int levels = getPyramidLevels(refImg.width, refImg.height, searchRange, 1.0);
+        return getRegistrationParamsOptimized(getGaussianPyramid(refImg, levels), testImg, initialParams,
+                maxIterations);
+    }
+
+    /**
+     * getRegistrationParamsOptimized with a precomputed reference pyramid, e.g. shared by all slices of a stack
+     *
+     * @param refPyramid    Gaussian pyramid of the reference image, its length sets the number of levels
+     * @param testImg       the image to test with
+     * @param initialParams start {transX, transY, rotAngle}
+     * @param maxIterations iteration budget per pyramid level
+     * @return {transX, transY, rotAngle} for transformImg
+     */
+    public double[] getRegistrationParamsOptimized(DoubleImage[] refPyramid, DoubleImage testImg,
+                                                   double[] initialParams, int maxIterations) {
+        DoubleImage refImg = refPyramid[0];
+        int levels = refPyramid.length;
+        DoubleImage[] testPyramid = getGaussianPyramid(testImg, levels);
+
+        double[] params = initialParams.clone();
+        int iterations = 0;
+        for (int level = levels - 1; level >= 0; level--) {
+            iterations += optimizeLevel(refPyramid[level], testPyramid[level], getGradientImages(testPyramid[level]),
+                    params, 1 << level, refImg.width / 2.0, refImg.height / 2.0, maxIterations);
+        }
+
+        ImageJUtility.log("optimizer: " + levels + " levels, " + iterations + " iterations");
+        return params;
+    }
+
+    /**
+     * Levenberg-Marquardt iterations on one pyramid level, params are updated in place
+     *
+     * @return number of iterations
+     */
+    private int optimizeLevel(DoubleImage refImg, DoubleImage testImg, DoubleImage[] gradient, double[] params,
+                              double scale, double centerX, double centerY, int maxIterations) {
+        double lambda = OPTIMIZER_INITIAL_LAMBDA;
+        double[] current = accumulateNormalEquations(refImg, testImg, gradient, params, scale, centerX, centerY);
+
+        int iteration = 0;
+        while (iteration < maxIterations && current[10] > 0) {
+            iteration++;
+
+            // damped normal equations (H + lambda * diag(H)) delta = -g
+            double[][] h = {
+                    {current[0] * (1.0 + lambda), current[1], current[2]},
+                    {current[1], current[3] * (1.0 + lambda), current[4]},
+                    {current[2], current[4], current[5] * (1.0 + lambda)}};
+            double[] delta = solve3x3(h, new double[]{-current[6], -current[7], -current[8]});
+            if (delta == null) {
+                break;
+            }
+
+            double[] trialParams = {params[0] + delta[0], params[1] + delta[1], params[2] + delta[2]};
+            double[] trial = accumulateNormalEquations(refImg, testImg, gradient, trialParams, scale, centerX, centerY);
+
+            // the overlap changes with the parameters, so compare the mean error
+            if (trial[10] > 0 && trial[9] / trial[10] < current[9] / current[10]) {
+                System.arraycopy(trialParams, 0, params, 0, 3);
+                current = trial;
+                lambda = Math.max(lambda / 10.0, 1e-9);
+                if (Math.abs(delta[0]) < OPTIMIZER_TOLERANCE * scale && Math.abs(delta[1]) < OPTIMIZER_TOLERANCE * scale
+                        && Math.abs(delta[2]) < OPTIMIZER_TOLERANCE) {
+                    break;
+                }
+            } else {
+                lambda *= 10.0;
+                if (lambda > 1e9) {
+                    break;
+                }
+            }
+        }
+        return iteration;
+    }
+
+    /**
+     * one pass over the overlap: residual r = test(transformed position) - ref, Jacobian J of r with respect to
+     * {transX, transY, rotAngle} in full resolution units
+     *
+     * @return {H00, H01, H02, H11, H12, H22, g0, g1, g2, sse, pixel count} with H = J^T J and g = J^T r
+     */
+    private double[] accumulateNormalEquations(DoubleImage refImg, DoubleImage testImg, DoubleImage[] gradient,
+                                               double[] params, double scale, double centerX, double centerY) {
+        int width = refImg.width;
+        int height = refImg.height;
+        double transX = params[0] / scale;
+        double transY = params[1] / scale;
+        double cX = centerX / scale;
+        double cY = centerY / scale;
+
+        double rotAngleRad = -params[2] * Math.PI / 180.0;
+        double cos = Math.cos(rotAngleRad);
+        double sin = Math.sin(rotAngleRad);
+        // d(rotAngleRad) / d(rotAngle)
+        double radPerDegree = -Math.PI / 180.0;
+
+        double[] sums = new double[11];
+        for (int y = 0; y < height; y++) {
+            double posY = y - cY;
+            int refIdx = y * refImg.stride;
+            for (int x = 0; x < width; x++) {
+                double posX = x - cX;
+                double srcX = posX * cos + posY * sin + cX - transX;
+                double srcY = -posX * sin + posY * cos + cY - transY;
+                if (srcX < 0 || srcY < 0 || srcX >= width - 1 || srcY >= height - 1) {
+                    continue;
+                }
+
+                double residual = getBilinearValue(testImg, srcX, srcY) - refImg.pixels[refIdx + x];
+                double gx = getBilinearValue(gradient[0], srcX, srcY);
+                double gy = getBilinearValue(gradient[1], srcX, srcY);
+
+                // chain rule: d(src)/d(trans) = -1 / scale, d(src)/d(angle) from the rotation matrix
+                double jX = -gx / scale;
+                double jY = -gy / scale;
+                double jR = (gx * (-posX * sin + posY * cos) + gy * (-posX * cos - posY * sin)) * radPerDegree;
+
+                sums[0] += jX * jX;
+                sums[1] += jX * jY;
+                sums[2] += jX * jR;
+                sums[3] += jY * jY;
+                sums[4] += jY * jR;
+                sums[5] += jR * jR;
+                sums[6] += jX * residual;
+                sums[7] += jY * residual;
+                sums[8] += jR * residual;
+                sums[9] += residual * residual;
+                sums[10]++;
+            }
+        }
+        return sums;
+    }
+
+    /**
+     * @param img  input image
+     * @param xIdx x position in [0;width - 1)
+     * @param yIdx y position in [0;height - 1)
+     * @return bilinear interpolated value
+     */
+    private double getBilinearValue(DoubleImage img, double xIdx, double yIdx) {
+        int x0 = (int) xIdx;
+        int y0 = (int) yIdx;
+        double fx = xIdx - x0;
+        double fy = yIdx - y0;
+        int idx = y0 * img.stride + x0;
+        double[] p = img.pixels;
+
+        double top = p[idx] + fx * (p[idx + 1] - p[idx]);
+        double bottom = p[idx + img.stride] + fx * (p[idx + img.stride + 1] - p[idx + img.stride]);
+        return top + fy * (bottom - top);
+    }
+
+    /**
+     * Gaussian elimination with partial pivoting
+     *
+     * @return solution of a * x = b, null if a is singular
+     */
+    private double[] solve3x3(double[][] a, double[] b) {
+        for (int col = 0; col < 3; col++) {
+            int pivot = col;
+            for (int row = col + 1; row < 3; row++) {
+                if (Math.abs(a[row][col]) > Math.abs(a[pivot][col])) {
+                    pivot = row;
+                }
+            }
+            if (Math.abs(a[pivot][col]) < 1e-12) {
+                return null;
+            }
+            double[] tmpRow = a[col];
+            a[col] = a[pivot];
+            a[pivot] = tmpRow;
+            double tmp = b[col];
+            b[col] = b[pivot];
+            b[pivot] = tmp;
+
+            for (int row = col + 1; row < 3; row++) {
+                double factor = a[row][col] / a[col][col];
+                for (int k = col; k < 3; k++) {
+                    a[row][k] -= factor * a[col][k];
+                }
+                b[row] -= factor * b[col];
+            }
+        }
+
+        double[] x = new double[3];
+        for (int row = 2; row >= 0; row--) {
+            double sum = b[row];
+            for (int k = row + 1; k < 3; k++) {
+                sum -= a[row][k] * x[k];
+            }
+            x[row] = sum / a[row][row];
+        }
+        return x;
+    }
+
+    // STACK REGISTRATION
+
+    /**
+     * registers every slice of a stack to a reference and writes the registered slices back in place. The
+     * reference data (pyramid or flat int image) is prepared once and shared by all slices, the slices are
+     * registered in parallel. With reference "previous" every slice is registered to its unregistered predecessor
+     * and the pairwise transforms are chained afterwards.
+     *
+     * @param stack     8-bit stack, modified in place
+     * @param reference "first", "mean" or "previous"
+     * @param parallel  true to register the slices on ParallelUtility's pool
+     * @return per slice {transX, transY, rotAngle} that was applied, relative to the reference
+     */
+    public double[][] registerStack(ImageStack stack, String reference, boolean parallel) {
+        int sliceCount = stack.getSize();
+        int width = stack.getWidth();
+        int height = stack.getHeight();
+        GrayImage8[] slices = new GrayImage8[sliceCount];
+        for (int i = 0; i < sliceCount; i++) {
+            slices[i] = GrayImage8.wrap(stack.getProcessor(i + 1));
+        }
+
+        // shared reference, not needed for "previous"
+        RegistrationReference sharedReference = null;
+        if (reference.equals("first")) {
+            sharedReference = new RegistrationReference(ImageJUtility.toDoubleImage(slices[0]));
+        } else if (reference.equals("mean")) {
+            sharedReference = new RegistrationReference(getMeanImage(slices));
+        }
+        RegistrationReference finalReference = sharedReference;
+
+        double[][] params = new double[sliceCount][3];
+        ParallelUtility.forEachBand(sliceCount, parallel, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                if (i == 0 && !reference.equals("mean")) {
+                    continue;
+                }
+                RegistrationReference sliceReference = finalReference != null ? finalReference
+                        : new RegistrationReference(ImageJUtility.toDoubleImage(slices[i - 1]));
+                // slices already run in parallel
+                params[i] = getRegistrationParams(sliceReference, ImageJUtility.toDoubleImage(slices[i]), false);
+            }
+        });
+
+        // slice i was registered to slice i - 1, chain to get the transform to the first slice
+        if (reference.equals("previous")) {
+            for (int i = 1; i < sliceCount; i++) {
+                params[i] = composeTransforms(params[i], params[i - 1], width, height);
+            }
+        }
+
+        ParallelUtility.forEachBand(sliceCount, parallel, (from, to) -> {
+            DoubleImage registered = new DoubleImage(width, height);
+            for (int i = from; i < to; i++) {
+                transformImg(ImageJUtility.toDoubleImage(slices[i]), registered, params[i][0], params[i][1],
+                        params[i][2], interpolation);
+                clampTo8Bit(registered);
+                ImageJUtility.writeTo(registered, slices[i]);
+            }
+        });
+
+        return params;
+    }
+
+    /**
+     * runs the selected search
+     *
+     * @param reference the reference image and its cached search data
+     * @param testImg   the image to test with
+     * @param parallel  true to let the search itself use ParallelUtility's pool
+     * @return {transX, transY, rotAngle}
+     */
+    private double[] getRegistrationParams(RegistrationReference reference, DoubleImage testImg, boolean parallel) {
+        switch (searchMode) {
+            case "pyramid":
+                return getRegistrationParamsPyramid(reference.getPyramid(), testImg, searchRange, angleRange,
+                        searchStep, reference.getMetric());
+            case "optimizer":
+                return getRegistrationParamsOptimized(reference.getPyramid(), testImg, new double[3], maxIterations);
+            case "phase correlation":
+                return getPhaseCorrelationParams(reference, testImg);
+            case "phase correlation + optimizer":
+                return getRegistrationParamsOptimized(reference.getPyramid(), testImg,
+                        getPhaseCorrelationParams(reference, testImg), maxIterations);
+            default:
+                return getRegistrationParamsGrid(reference.getIntImage(), ImageJUtility.toIntImage(testImg),
+                        searchRange, angleRange, searchStep, reference.getMetric(), parallel);
+        }
+    }
+
+    /**
+     * reference image with the search data that only depends on it (pyramid, int copy, spectra). Everything is
+     * computed on first use and shared, e.g. by all slices of a stack that are registered to the same reference.
+     */
+    private class RegistrationReference {
+        private final DoubleImage image;
+        private DoubleImage[] pyramid;
+        private IntImage intImage;
+        private double[][] spectrum;
+        private double[][] polarSpectrum;
+        private SimilarityMetric similarityMetric;
+
+        RegistrationReference(DoubleImage image) {
+            this.image = image;
+        }
+
+        synchronized DoubleImage[] getPyramid() {
+            if (pyramid == null) {
+                // the optimizer needs about one pixel of translation left on the coarsest level
+                int levels = searchMode.equals("pyramid")
+                        ? getPyramidLevels(image.width, image.height, Math.min(searchRange, angleRange), searchStep)
+                        : getPyramidLevels(image.width, image.height, searchRange, 1.0);
+                pyramid = getGaussianPyramid(image, levels);
+            }
+            return pyramid;
+        }
+
+        synchronized SimilarityMetric getMetric() {
+            if (similarityMetric == null) {
+                similarityMetric = SimilarityMetric.create(metric, image);
+            }
+            return similarityMetric;
+        }
+
+        synchronized IntImage getIntImage() {
+            if (intImage == null) {
+                intImage = ImageJUtility.toIntImage(image);
+            }
+            return intImage;
+        }
+
+        synchronized double[][] getSpectrum() {
+            if (spectrum == null) {
+                spectrum = getWindowedSpectrum(image, FFT.nextPowerOfTwo(image.width),
+                        FFT.nextPowerOfTwo(image.height), false);
+            }
+            return spectrum;
+        }
+
+        synchronized double[][] getPolarSpectrum() {
+            if (polarSpectrum == null) {
+                polarSpectrum = getWindowedSpectrum(getPolarMagnitude(getSpectrum(), FFT.nextPowerOfTwo(image.width),
+                        FFT.nextPowerOfTwo(image.height)), POLAR_ANGLES, POLAR_RADII, true);
+            }
+            return polarSpectrum;
+        }
+    }
+
+    // PHASE CORRELATION (translation from the cross power spectrum, rotation from the polar magnitude spectrum)
+
+    /**
+     * FFT phase correlation: the normalized cross power spectrum of two shifted images transforms back to a single
+     * peak at the shift. O(N log N) instead of one image pass per candidate, sub-pixel by a parabola fit through the
+     * peak. With an angle range > 0 the rotation is estimated first from the polar magnitude spectra (the
+     * magnitude does not depend on the translation and rotates with the image), then the translation of the
+     * derotated image. The peaks are only searched within the angle range (at most [-90;90) degrees) and the search
+     * range, a stronger peak outside is a wrapped or ambiguous match, and the result is limited to both ranges.
+     *
+     * @param refImg  The reference image
+     * @param testImg the image to test with
+     * @return {transX, transY, rotAngle} for transformImg, e.g. as start for getRegistrationParamsOptimized
+     */
+    public double[] getPhaseCorrelationParams(DoubleImage refImg, DoubleImage testImg) {
+        return getPhaseCorrelationParams(new RegistrationReference(refImg), testImg);
+    }
+
+    private double[] getPhaseCorrelationParams(RegistrationReference reference, DoubleImage testImg) {
+        int sizeX = FFT.nextPowerOfTwo(testImg.width);
+        int sizeY = FFT.nextPowerOfTwo(testImg.height);
+
+        double rotAngle = 0.0;
+        DoubleImage derotated = testImg;
+        if (angleRange > 0.0) {
+            double[][] testSpectrum = getWindowedSpectrum(testImg, sizeX, sizeY, false);
+            double[][] testPolar = getWindowedSpectrum(getPolarMagnitude(testSpectrum, sizeX, sizeY), POLAR_ANGLES,
+                    POLAR_RADII, true);
+            double[] peak = getCorrelationPeak(reference.getPolarSpectrum(), testPolar, POLAR_ANGLES, POLAR_RADII,
+                    angleRange * POLAR_ANGLES / 180.0, POLAR_RADII);
+            rotAngle = -peak[0] * 180.0 / POLAR_ANGLES;
+
+            derotated = new DoubleImage(testImg.width, testImg.height);
+            transformImg(testImg, derotated, 0.0, 0.0, rotAngle, ImageProcessor.BILINEAR);
+        }
+
+        double[] shift = getCorrelationPeak(reference.getSpectrum(),
+                getWindowedSpectrum(derotated, sizeX, sizeY, false), sizeX, sizeY, searchRange, searchRange);
+        // transformImg samples at x - trans, so the image moves by +trans
+        double[] translation = {shift[0], shift[1], 0.0};
+        double[] params = composeTransforms(new double[]{0.0, 0.0, rotAngle}, translation, testImg.width,
+                testImg.height);
+
+        // the sub-pixel fit and the rotation of the shift can still step over the ranges
+        params[0] = Math.max(-searchRange, Math.min(searchRange, params[0]));
+        params[1] = Math.max(-searchRange, Math.min(searchRange, params[1]));
+        params[2] = Math.max(-angleRange, Math.min(angleRange, params[2]));
+        return params;
+    }
+
+    /**
+     * @param img      input image, out of image values (-1) are treated as 0
+     * @param sizeX    transform width, power of two >= image width
+     * @param sizeY    transform height, power of two >= image height
+     * @param periodicX true if the image wraps around in x (polar angle), then only y gets a window
+     * @return {re, im} of the 2D FFT of the mean free, Hann windowed, zero padded image
+     */
+    private double[][] getWindowedSpectrum(DoubleImage img, int sizeX, int sizeY, boolean periodicX) {
+        double mean = 0.0;
+        for (int y = 0; y < img.height; y++) {
+            for (int x = 0; x < img.width; x++) {
+                mean += Math.max(0.0, img.get(x, y));
+            }
+        }
+        mean /= (double) img.width * img.height;
+
+        double[] re = new double[sizeX * sizeY];
+        double[] im = new double[sizeX * sizeY];
+        for (int y = 0; y < img.height; y++) {
+            double windowY = 0.5 - 0.5 * Math.cos(2.0 * Math.PI * (y + 0.5) / img.height);
+            for (int x = 0; x < img.width; x++) {
+                double windowX = periodicX ? 1.0 : 0.5 - 0.5 * Math.cos(2.0 * Math.PI * (x + 0.5) / img.width);
+                re[y * sizeX + x] = (Math.max(0.0, img.get(x, y)) - mean) * windowX * windowY;
+            }
+        }
+
+        FFT.transform2D(re, im, sizeX, sizeY, false);
+        return new double[][]{re, im};
+    }
+
+    /**
+     * @return sub-pixel position {x, y} of the phase correlation peak, signed (wrapped to [-size/2;size/2))
+     */
+    private double[] getCorrelationPeak(double[][] refSpectrum, double[][] testSpectrum, int sizeX, int sizeY,
+                                        double maxShiftX, double maxShiftY) {
+        double[] re = new double[sizeX * sizeY];
+        double[] im = new double[sizeX * sizeY];
+        for (int i = 0; i < re.length; i++) {
+            // ref * conj(test), normalized to magnitude 1
+            double crossRe = refSpectrum[0][i] * testSpectrum[0][i] + refSpectrum[1][i] * testSpectrum[1][i];
+            double crossIm = refSpectrum[1][i] * testSpectrum[0][i] - refSpectrum[0][i] * testSpectrum[1][i];
+            double magnitude = Math.hypot(crossRe, crossIm);
+            if (magnitude > 1e-12) {
+                re[i] = crossRe / magnitude;
+                im[i] = crossIm / magnitude;
+            }
+        }
+        FFT.transform2D(re, im, sizeX, sizeY, true);
+
+        // only shifts up to maxShiftX and maxShiftY (wrapped) are candidates
+        int peak = 0;
+        for (int y = 0; y < sizeY; y++) {
+            if (Math.abs(y >= sizeY / 2 ? y - sizeY : y) > maxShiftY) {
+                continue;
+            }
+            for (int x = 0; x < sizeX; x++) {
+                int i = y * sizeX + x;
+                if (Math.abs(x >= sizeX / 2 ? x - sizeX : x) <= maxShiftX && re[i] > re[peak]) {
+                    peak = i;
+                }
+            }
+        }
+        int peakX = peak % sizeX;
+        int peakY = peak / sizeX;
+
+        // parabola through the peak and its (wrapped) neighbors
+        double left = re[peakY * sizeX + (peakX + sizeX - 1) % sizeX];
+        double right = re[peakY * sizeX + (peakX + 1) % sizeX];
+        double up = re[(peakY + sizeY - 1) % sizeY * sizeX + peakX];
+        double down = re[(peakY + 1) % sizeY * sizeX + peakX];
+        double x = peakX + getParabolaOffset(left, re[peak], right);
+        double y = peakY + getParabolaOffset(up, re[peak], down);
+
+        return new double[]{x >= sizeX / 2.0 ? x - sizeX : x, y >= sizeY / 2.0 ? y - sizeY : y};
+    }
+
+    private double getParabolaOffset(double before, double center, double after) {
+        double curvature = before - 2.0 * center + after;
+        return curvature < 0.0 ? Math.max(-0.5, Math.min(0.5, 0.5 * (before - after) / curvature)) : 0.0;
+    }
+
+    /**
+     * resamples the log magnitude spectrum on a polar grid: x is the angle in [0;180) degrees (the magnitude of a
+     * real image is point symmetric), y the frequency radius. Very low frequencies (window and image border) and
+     * the corners beyond the Nyquist circle are left out.
+     *
+     * @param spectrum {re, im} of a sizeX * sizeY FFT
+     * @return POLAR_ANGLES * POLAR_RADII image
+     */
+    private DoubleImage getPolarMagnitude(double[][] spectrum, int sizeX, int sizeY) {
+        DoubleImage magnitude = new DoubleImage(sizeX, sizeY);
+        for (int i = 0; i < magnitude.pixels.length; i++) {
+            magnitude.pixels[i] = Math.log1p(Math.hypot(spectrum[0][i], spectrum[1][i]));
+        }
+
+        DoubleImage polar = new DoubleImage(POLAR_ANGLES, POLAR_RADII);
+        for (int r = 0; r < POLAR_RADII; r++) {
+            // radius in cycles per pixel, same for both axes so that the rotation is preserved
+            double radius = POLAR_MIN_RADIUS + (0.5 - POLAR_MIN_RADIUS) * r / POLAR_RADII;
+            for (int a = 0; a < POLAR_ANGLES; a++) {
+                double angle = Math.PI * a / POLAR_ANGLES;
+                // frequency index, negative frequencies wrap around
+                double kx = radius * Math.cos(angle) * sizeX;
+                double ky = radius * Math.sin(angle) * sizeY;
+                polar.set(a, r, getWrappedBilinearValue(magnitude, kx, ky));
+            }
+        }
+        return polar;
+    }
+
+    private double getWrappedBilinearValue(DoubleImage img, double xIdx, double yIdx) {
+        int x0 = (int) Math.floor(xIdx);
+        int y0 = (int) Math.floor(yIdx);
+        double fx = xIdx - x0;
+        double fy = yIdx - y0;
+        int x0w = Math.floorMod(x0, img.width);
+        int x1w = Math.floorMod(x0 + 1, img.width);
+        int y0w = Math.floorMod(y0, img.height);
+        int y1w = Math.floorMod(y0 + 1, img.height);
+
+        double top = img.get(x0w, y0w) + fx * (img.get(x1w, y0w) - img.get(x0w, y0w));
+        double bottom = img.get(x0w, y1w) + fx * (img.get(x1w, y1w) - img.get(x0w, y1w));
+        return top + fy * (bottom - top);
+    }
+
+    /**
+     * @param slices 8-bit images of the same size
+     * @return pixel-wise mean
+     */
+    public DoubleImage getMeanImage(GrayImage8[] slices) {
+        DoubleImage mean = new DoubleImage(slices[0].width, slices[0].height);
+        for (GrayImage8 slice : slices) {
+            for (int y = 0; y < slice.height; y++) {
+                int inIdx = y * slice.stride;
+                int outIdx = y * mean.stride;
+                for (int x = 0; x < slice.width; x++) {
+                    mean.pixels[outIdx + x] += slice.pixels[inIdx + x] & 0xff;
+                }
+            }
+        }
+        for (int i = 0; i < mean.pixels.length; i++) {
+            mean.pixels[i] /= slices.length;
+        }
+        return mean;
+    }
+
+    /**
+     * transformImg samples the test image at M(x) = R (x - c) + c - t. Applying first and then second is
+     * M_first(M_second(x)): the angles add up and the translation is t_first + R_first t_second.
+     *
+     * @param first  {transX, transY, rotAngle}
+     * @param second {transX, transY, rotAngle}
+     * @param width  image width, only used for the rotation center
+     * @param height image height
+     * @return the combined {transX, transY, rotAngle}
+     */
+    public double[] composeTransforms(double[] first, double[] second, int width, int height) {
+        double rotAngleRad = -first[2] * Math.PI / 180.0;
+        double cos = Math.cos(rotAngleRad);
+        double sin = Math.sin(rotAngleRad);
+        return new double[]{
+                first[0] + cos * second[0] + sin * second[1],
+                first[1] - sin * second[0] + cos * second[1],
+                first[2] + second[2]};
+    }
+
+    /**
+     * limits interpolated values to [0;255] before they are written to an 8-bit image, bicubic can overshoot and
+     * out of image pixels are -1
+     */
+    private void clampTo8Bit(DoubleImage img) {
+        for (int i = 0; i < img.pixels.length; i++) {
+            img.pixels[i] = Math.max(0.0, Math.min(255.0, img.pixels[i]));
+        }
+    }
+
+    /**
+     * per slice transforms as a table, shown in a window or written to Registration_transforms.csv by batch runs
+     */
+    private void reportTransformTable(double[][] params) {
+        ResultsTable table = new ResultsTable();
+        for (int i = 0; i < params.length; i++) {
+            table.incrementCounter();
+            table.addValue("slice", i + 1);
+            table.addValue("transX", params[i][0]);
+            table.addValue("transY", params[i][1]);
+            table.addValue("rotAngle", params[i][2]);
+        }
+        ImageJUtility.showTable("Registration transforms", table);
+    }
 
     public void run(ImageProcessor ip) {
+        if (stackImp != null) {
+            double[][] params = registerStack(stackImp.getStack(), reference, true);
+            reportTransformTable(params);
+            stackImp.updateAndDraw();
+            return;
+        }
+
         byte[] pixels = (byte[]) ip.getPixels();
         int width = ip.getWidth();
         int height = ip.getHeight();
@@ -175,11 +1666,18 @@ public class Registration_ implements PlugInFilter {
 
         int[][] transformedImage = transformImg(inDataArrInt, width, height, transX, transY, rot);
         double initError = getImgDiffSSE(inDataArrInt, transformedImage, width, height);
-        IJ.log("init error = " + initError);
+        ImageJUtility.log("init error = " + initError);
         ImageJUtility.showNewImage(transformedImage, width, height, "transformed img");
 
-        int[][] registeredImg = getRegisteredImage(inDataArrInt, transformedImage, width, height);
-        ImageJUtility.showNewImage(registeredImg, width, height, "registered img");
+        DoubleImage refImg = ImageJUtility.toDoubleImage(ImageJUtility.toIntImage(inDataArrInt, width, height));
+        DoubleImage testImg = ImageJUtility.toDoubleImage(ImageJUtility.toIntImage(transformedImage, width, height));
+        double[] params = getRegistrationParams(new RegistrationReference(refImg), testImg, true);
+        ImageJUtility.log("best Tx=" + params[0] + " Ty=" + params[1] + " R=" + params[2]);
+
+        DoubleImage registeredImg = new DoubleImage(width, height);
+        transformImg(testImg, registeredImg, params[0], params[1], params[2], interpolation);
+        clampTo8Bit(registeredImg);
+        ImageJUtility.showNewImage(registeredImg, "registered img");
 
     } //run
 
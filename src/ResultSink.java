@@ -0,0 +1,27 @@
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+
+/**
+ * Destination for everything a plugin produces: result images, numeric results and result tables. Interactive runs open a window
+ * per image (see ImageJUtility), headless batch runs write files instead (see FileResultSink).
+ */
+public interface ResultSink {
+
+    /**
+     * @param imp result image, its title names the processing step
+     */
+    void showImage(ImagePlus imp);
+
+    /**
+     * @param name  name of the measurement, e.g. "sumCents"
+     * @param value the measured value
+     */
+    void putResult(String name, double value);
+
+    /**
+     * @param title name of the table, e.g. "Coins"
+     * @param table one row per measured object
+     */
+    void showTable(String title, ResultsTable table);
+
+}
@@ -0,0 +1,313 @@
+/**
+ * Similarity of a reference and a transformed test image for the registration search, expressed as a cost (lower is
+ * better). Pixel pairs are added to an Accumulator one at a time or a row at a time, so a cost can be built up over
+ * any overlap region, e.g. row by row in decorrelated order. Positions outside of the test image (value -1) are
+ * masked instead of being compared as intensity, and all costs are normalized to the number of overlapping pixels.
+ */
+public interface SimilarityMetric {
+
+    String[] NAMES = {"SSE", "SAD", "NCC", "mutual information"};
+
+    /**
+     * @return a new, empty accumulator. Accumulators are not thread safe, the metric itself can be shared.
+     */
+    Accumulator newAccumulator();
+
+    /**
+     * running sums of one comparison
+     */
+    interface Accumulator {
+
+        /**
+         * @param refValue  reference intensity
+         * @param testValue transformed test intensity at the same position, must be inside the test image
+         */
+        void add(double refValue, double testValue);
+
+        /**
+         * adds length pixel pairs, pairs with a negative (out of image) test value are skipped. Sums are kept in
+         * locals over the row, which is about twice as fast as calling add per pixel.
+         *
+         * @param refValues  reference intensities
+         * @param refOffset  index of the first reference intensity
+         * @param testValues transformed test intensities, starting at index 0
+         * @param length     number of pairs
+         */
+        void addRow(double[] refValues, int refOffset, double[] testValues, int length);
+
+        /**
+         * @return number of added pixel pairs
+         */
+        int getCount();
+
+        /**
+         * @return cost of the added pixel pairs, lower is better
+         */
+        double getCost();
+
+        /**
+         * @param maxCount largest number of pixel pairs the final cost can be based on
+         * @return lower bound of getCost after adding any further pairs, used to abandon losing candidates early
+         */
+        double getLowerBound(int maxCount);
+    }
+
+    /**
+     * @param name   entry of NAMES
+     * @param refImg reference image with intensities in [0;255], out of image values (< 0) are ignored
+     * @return metric prepared for this reference
+     */
+    static SimilarityMetric create(String name, DoubleImage refImg) {
+        switch (name) {
+            case "SSE":
+                return SquaredAccumulator::new;
+            case "SAD":
+                return AbsoluteAccumulator::new;
+            case "NCC":
+                double sum = 0.0;
+                int count = 0;
+                for (int y = 0; y < refImg.height; y++) {
+                    for (int x = 0; x < refImg.width; x++) {
+                        double value = refImg.get(x, y);
+                        if (value >= 0.0) {
+                            sum += value;
+                            count++;
+                        }
+                    }
+                }
+                double refMean = count > 0 ? sum / count : 0.0;
+                return () -> new CorrelationAccumulator(refMean);
+            case "mutual information":
+                return HistogramAccumulator::new;
+            default:
+                throw new IllegalArgumentException("unknown metric: " + name);
+        }
+    }
+
+    /**
+     * mean squared difference. The sum only grows, so sum / maxCount bounds the final cost.
+     */
+    class SquaredAccumulator implements Accumulator {
+        private double sum = 0.0;
+        private int count = 0;
+
+        public void add(double refValue, double testValue) {
+            double diff = testValue - refValue;
+            sum += diff * diff;
+            count++;
+        }
+
+        public void addRow(double[] refValues, int refOffset, double[] testValues, int length) {
+            double rowSum = 0.0;
+            int rowCount = 0;
+            for (int i = 0; i < length; i++) {
+                double testValue = testValues[i];
+                if (testValue >= 0.0) {
+                    double diff = testValue - refValues[refOffset + i];
+                    rowSum += diff * diff;
+                    rowCount++;
+                }
+            }
+            sum += rowSum;
+            count += rowCount;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public double getCost() {
+            return count > 0 ? sum / count : Double.POSITIVE_INFINITY;
+        }
+
+        public double getLowerBound(int maxCount) {
+            return sum / maxCount;
+        }
+    }
+
+    /**
+     * mean absolute difference, less sensitive to outliers than SSE, bounded like SquaredAccumulator
+     */
+    class AbsoluteAccumulator implements Accumulator {
+        private double sum = 0.0;
+        private int count = 0;
+
+        public void add(double refValue, double testValue) {
+            sum += Math.abs(testValue - refValue);
+            count++;
+        }
+
+        public void addRow(double[] refValues, int refOffset, double[] testValues, int length) {
+            double rowSum = 0.0;
+            int rowCount = 0;
+            for (int i = 0; i < length; i++) {
+                double testValue = testValues[i];
+                if (testValue >= 0.0) {
+                    rowSum += Math.abs(testValue - refValues[refOffset + i]);
+                    rowCount++;
+                }
+            }
+            sum += rowSum;
+            count += rowCount;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public double getCost() {
+            return count > 0 ? sum / count : Double.POSITIVE_INFINITY;
+        }
+
+        public double getLowerBound(int maxCount) {
+            return sum / maxCount;
+        }
+    }
+
+    /**
+     * 1 - normalized cross-correlation over the overlap, in [0;2], insensitive to brightness and contrast changes.
+     * Both intensities are centered with the precomputed reference mean, which keeps the variance sums free of
+     * cancellation; the exact means and variances of the overlap follow from the five sums.
+     */
+    class CorrelationAccumulator implements Accumulator {
+        private final double refMean;
+        private double sumRef = 0.0;
+        private double sumTest = 0.0;
+        private double sumRefRef = 0.0;
+        private double sumTestTest = 0.0;
+        private double sumRefTest = 0.0;
+        private int count = 0;
+
+        CorrelationAccumulator(double refMean) {
+            this.refMean = refMean;
+        }
+
+        public void add(double refValue, double testValue) {
+            double ref = refValue - refMean;
+            double test = testValue - refMean;
+            sumRef += ref;
+            sumTest += test;
+            sumRefRef += ref * ref;
+            sumTestTest += test * test;
+            sumRefTest += ref * test;
+            count++;
+        }
+
+        public void addRow(double[] refValues, int refOffset, double[] testValues, int length) {
+            double rowRef = 0.0;
+            double rowTest = 0.0;
+            double rowRefRef = 0.0;
+            double rowTestTest = 0.0;
+            double rowRefTest = 0.0;
+            int rowCount = 0;
+            for (int i = 0; i < length; i++) {
+                if (testValues[i] >= 0.0) {
+                    double ref = refValues[refOffset + i] - refMean;
+                    double test = testValues[i] - refMean;
+                    rowRef += ref;
+                    rowTest += test;
+                    rowRefRef += ref * ref;
+                    rowTestTest += test * test;
+                    rowRefTest += ref * test;
+                    rowCount++;
+                }
+            }
+            sumRef += rowRef;
+            sumTest += rowTest;
+            sumRefRef += rowRefRef;
+            sumTestTest += rowTestTest;
+            sumRefTest += rowRefTest;
+            count += rowCount;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public double getCost() {
+            if (count == 0) {
+                return Double.POSITIVE_INFINITY;
+            }
+            double varRef = sumRefRef - sumRef * sumRef / count;
+            double varTest = sumTestTest - sumTest * sumTest / count;
+            if (varRef <= 0.0 || varTest <= 0.0) {
+                // flat overlap, no information either way
+                return 1.0;
+            }
+            return 1.0 - (sumRefTest - sumRef * sumTest / count) / Math.sqrt(varRef * varTest);
+        }
+
+        public double getLowerBound(int maxCount) {
+            return 0.0;
+        }
+    }
+
+    /**
+     * negative mutual information of the joint intensity histogram (BINS x BINS), for intensities in [0;255]
+     */
+    class HistogramAccumulator implements Accumulator {
+        private static final int BINS = 32;
+
+        private final int[] joint = new int[BINS * BINS];
+        private int count = 0;
+
+        public void add(double refValue, double testValue) {
+            joint[getBin(refValue) * BINS + getBin(testValue)]++;
+            count++;
+        }
+
+        public void addRow(double[] refValues, int refOffset, double[] testValues, int length) {
+            for (int i = 0; i < length; i++) {
+                if (testValues[i] >= 0.0) {
+                    add(refValues[refOffset + i], testValues[i]);
+                }
+            }
+        }
+
+        private int getBin(double value) {
+            return Math.max(0, Math.min(BINS - 1, (int) (value * BINS / 256.0)));
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public double getCost() {
+            if (count == 0) {
+                return Double.POSITIVE_INFINITY;
+            }
+            int[] refHist = new int[BINS];
+            int[] testHist = new int[BINS];
+            double jointEntropy = 0.0;
+            for (int r = 0; r < BINS; r++) {
+                for (int t = 0; t < BINS; t++) {
+                    int n = joint[r * BINS + t];
+                    refHist[r] += n;
+                    testHist[t] += n;
+                    jointEntropy -= getEntropyTerm(n);
+                }
+            }
+            double refEntropy = 0.0;
+            double testEntropy = 0.0;
+            for (int i = 0; i < BINS; i++) {
+                refEntropy -= getEntropyTerm(refHist[i]);
+                testEntropy -= getEntropyTerm(testHist[i]);
+            }
+            // MI = H(ref) + H(test) - H(ref, test)
+            return jointEntropy - refEntropy - testEntropy;
+        }
+
+        private double getEntropyTerm(int n) {
+            if (n == 0) {
+                return 0.0;
+            }
+            double p = (double) n / count;
+            return p * Math.log(p);
+        }
+
+        public double getLowerBound(int maxCount) {
+            return Double.NEGATIVE_INFINITY;
+        }
+    }
+
+}
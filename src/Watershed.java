@@ -0,0 +1,113 @@
+import java.util.Arrays;
+
+/**
+ * Marker-based watershed (Meyer's flooding) on a flat, row-major image of integer levels. The markers grow into
+ * their unlabelled neighbours in the order of descending level, e.g. from the centers of touching objects down the
+ * distance transform, until the floods meet. Levels are bounded integers, so the priority queue is a bucket queue:
+ * one FIFO list per level, chained through a single int array, which makes the flooding linear in the number of
+ * pixels plus levels. There are no watershed lines, a pixel goes to the flood that reaches it first: it is labelled
+ * when it is queued, with the label of the pixel that queues it.
+ */
+public class Watershed {
+
+    /**
+     * floods the labels in place
+     *
+     * @param labels         marker labels (> 0), 0 for pixels still to be assigned
+     * @param levels         priority per pixel in [0;maxLevel], higher levels are flooded first, negative levels
+     *                       are never flooded (background)
+     * @param width          The width of the image.
+     * @param height         The height of the image.
+     * @param eightConnected true for 8-connectivity, false for 4-connectivity
+     */
+    public static void flood(int[] labels, int[] levels, int width, int height, boolean eightConnected) {
+        int maxLevel = 0;
+        for (int level : levels) {
+            maxLevel = Math.max(maxLevel, level);
+        }
+
+        // bucket queue: head and tail per level, next links the pixels of a bucket, -1 ends a list
+        int[] head = new int[maxLevel + 1];
+        int[] tail = new int[maxLevel + 1];
+        Arrays.fill(head, -1);
+        int[] next = new int[labels.length];
+        boolean[] queued = new boolean[labels.length];
+
+        // the flood starts at the unlabelled neighbours of all markers, a pixel takes its label when it is queued
+        int[] neighbors = new int[8];
+        for (int idx = 0; idx < labels.length; idx++) {
+            if (labels[idx] > 0 || levels[idx] < 0) {
+                continue;
+            }
+            int markerLabel = getMarkerLabel(labels, queued, width, height, idx, eightConnected, neighbors);
+            if (markerLabel > 0) {
+                labels[idx] = markerLabel;
+                queued[idx] = true;
+                push(head, tail, next, levels[idx], idx);
+            }
+        }
+
+        for (int level = maxLevel; level >= 0; ) {
+            int idx = head[level];
+            if (idx < 0) {
+                level--;
+                continue;
+            }
+            head[level] = next[idx];
+
+            int count = getNeighbors(width, height, idx, eightConnected, neighbors);
+            for (int i = 0; i < count; i++) {
+                int nbIdx = neighbors[i];
+                if (labels[nbIdx] == 0 && levels[nbIdx] >= 0) {
+                    labels[nbIdx] = labels[idx];
+                    // a neighbour above the current level (a saddle) is flooded from here, not before its turn
+                    push(head, tail, next, Math.min(levels[nbIdx], level), nbIdx);
+                }
+            }
+        }
+    }
+
+    private static void push(int[] head, int[] tail, int[] next, int level, int idx) {
+        next[idx] = -1;
+        if (head[level] < 0) {
+            head[level] = idx;
+        } else {
+            next[tail[level]] = idx;
+        }
+        tail[level] = idx;
+    }
+
+    /**
+     * @return label of the first marker pixel among the neighbours of idx, 0 if there is none; pixels labelled by
+     * the seeding itself are not markers
+     */
+    private static int getMarkerLabel(int[] labels, boolean[] queued, int width, int height, int idx,
+                                      boolean eightConnected, int[] neighbors) {
+        int count = getNeighbors(width, height, idx, eightConnected, neighbors);
+        for (int i = 0; i < count; i++) {
+            int nbIdx = neighbors[i];
+            if (labels[nbIdx] > 0 && !queued[nbIdx]) {
+                return labels[nbIdx];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return number of in-image neighbours of idx written to neighbors
+     */
+    private static int getNeighbors(int width, int height, int idx, boolean eightConnected, int[] neighbors) {
+        int x = idx % width;
+        int y = idx / width;
+        int count = 0;
+        for (int nbY = Math.max(0, y - 1); nbY <= Math.min(height - 1, y + 1); nbY++) {
+            for (int nbX = Math.max(0, x - 1); nbX <= Math.min(width - 1, x + 1); nbX++) {
+                if ((nbX != x || nbY != y) && (eightConnected || nbX == x || nbY == y)) {
+                    neighbors[count++] = nbY * width + nbX;
+                }
+            }
+        }
+        return count;
+    }
+
+}